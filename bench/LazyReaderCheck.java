@@ -0,0 +1,155 @@
+import cppsyntaxpane.LexerPool;
+import cppsyntaxpane.Scope;
+import cppsyntaxpane.SyntaxDocument;
+import cppsyntaxpane.Token;
+import cppsyntaxpane.lexers.CppLexer;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that threads reading the Tokens of a document in lazy mode all at once
+ * get the same answers as from a document lexed in full.  Each reader asks for
+ * Tokens, pairs and scopes further and further on, so the text is lexed on for
+ * one while the others read.  The argument is the number of seeds to run, 20 by
+ * default; the check exits with status 1 if any of them failed.
+ */
+public class LazyReaderCheck {
+  private static final int LINES = 60000;
+  private static final int READERS = 4;
+  private static final int QUERIES = 4000;
+  // how far back or on of its sweep through the text a reader may ask
+  private static final int JITTER = 100000;
+
+  public static void main (String[] args) throws Exception {
+    int seeds = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+    String text = corpus(new Random(0));
+    SyntaxDocument reference = new SyntaxDocument(new LexerPool(CppLexer::new));
+    // lexed in full before insertString returns
+    reference.setTimeBudget(0);
+    reference.insertString(0, text, null);
+    System.out.printf("%.1f MB, %d readers of %d queries%n", text.length() / 1e6, READERS, QUERIES);
+    int failed = 0;
+    for (int seed = 1; seed <= seeds; seed++) {
+      String failure = check(seed, text, reference);
+      if (failure != null) {
+        failed++;
+        System.out.printf("seed %d: %s%n", seed, failure);
+      }
+    }
+    System.out.printf("%d of %d seeds failed%n", failed, seeds);
+    System.exit((failed == 0) ? 0 : 1);
+  }
+
+  /**
+   * Returns what the readers of a lazy document got wrong first, or null if
+   * nothing
+   */
+  private static String check (int seed, String text, SyntaxDocument reference) throws Exception {
+    int[][] positions = new int[READERS][QUERIES];
+    Token[][] tokens = new Token[READERS][QUERIES];
+    Token[][] pairs = new Token[READERS][QUERIES];
+    Scope[][] scopes = new Scope[READERS][QUERIES];
+    for (int r = 0; r < READERS; r++) {
+      Random random = new Random(seed * 31L + r);
+      for (int q = 0; q < QUERIES; q++) {
+        int sweep = (int) ((long) text.length() * q / QUERIES);
+        int pos = Math.max(0, Math.min(text.length() - 1, sweep + random.nextInt(2 * JITTER) - JITTER));
+        positions[r][q] = pos;
+        tokens[r][q] = reference.getTokenAt(pos);
+        pairs[r][q] = reference.getPairFor(tokens[r][q]);
+        scopes[r][q] = reference.getScopeAt(pos);
+      }
+    }
+    SyntaxDocument doc = new SyntaxDocument(new LexerPool(CppLexer::new));
+    doc.setTimeBudget(0);
+    doc.setLazy(true);
+    doc.insertString(0, text, null);
+    AtomicReference<String> failure = new AtomicReference<>();
+    Thread[] readers = new Thread[READERS];
+    for (int r = 0; r < READERS; r++) {
+      int reader = r;
+      readers[r] = new Thread(() -> {
+        try {
+          for (int q = 0; q < QUERIES && failure.get() == null; q++) {
+            int pos = positions[reader][q];
+            Token token = doc.getTokenAt(pos);
+            if (token == null ? tokens[reader][q] != null : !token.equals(tokens[reader][q])) {
+              failure.compareAndSet(null, String.format("Token at %d is %s instead of %s", pos, token,
+                                                        tokens[reader][q]));
+            }
+            Token pair = doc.getPairFor(tokens[reader][q]);
+            if (pair == null ? pairs[reader][q] != null : !pair.equals(pairs[reader][q])) {
+              failure.compareAndSet(null, String.format("pair of %s is %s instead of %s", tokens[reader][q], pair,
+                                                        pairs[reader][q]));
+            }
+            Scope scope = doc.getScopeAt(pos);
+            if (!same(scope, scopes[reader][q])) {
+              failure.compareAndSet(null, String.format("scope at %d is %s instead of %s", pos, scope,
+                                                        scopes[reader][q]));
+            }
+          }
+        } catch (RuntimeException ex) {
+          failure.compareAndSet(null, ex.toString());
+        }
+      }, "reader " + r);
+    }
+    for (Thread reader : readers) {
+      reader.start();
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    return failure.get();
+  }
+
+  private static boolean same (Scope a, Scope b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    return a.start == b.start && a.end == b.end && a.depth == b.depth;
+  }
+
+  /**
+   * Returns C++ text of nested blocks with comments, strings and preprocessor
+   * lines, some spanning several lines
+   */
+  private static String corpus (Random random) {
+    StringBuilder sb = new StringBuilder();
+    int depth = 0;
+    for (int i = 0; i < LINES; i++) {
+      for (int d = 0; d < Math.min(depth, 8); d++) {
+        sb.append("  ");
+      }
+      switch (random.nextInt(8)) {
+        case 0:
+          sb.append("void f").append(i).append(" (int a) {");
+          depth++;
+          break;
+        case 1:
+          if (depth > 0) {
+            sb.append('}');
+            depth--;
+          }
+          break;
+        case 2:
+          sb.append("/* comment ").append(i).append("\n * spanning lines */");
+          break;
+        case 3:
+          sb.append("const char *s = \"string ").append(i).append(" \\\" (\";");
+          break;
+        case 4:
+          sb.append("#define M").append(i).append(" (").append(i).append(" << 2) \\\n  + 1");
+          break;
+        case 5:
+          sb.append("x[").append(i).append("] = (a + 0x").append(Integer.toHexString(i)).append(") * 2.5e3; // ]");
+          break;
+        default:
+          sb.append("if (a > ").append(i).append(") { return a; }");
+          break;
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,234 @@
+import cppsyntaxpane.Lexer;
+import cppsyntaxpane.TokenSink;
+import cppsyntaxpane.TokenType;
+import cppsyntaxpane.WordDictionary;
+import cppsyntaxpane.lexers.CppLexer;
+import cppsyntaxpane.lexers.DirectCppLexer;
+import cppsyntaxpane.syntaxkits.CppSyntaxKit;
+
+import javax.swing.JEditorPane;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Segment;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures how fast CppLexer and DirectCppLexer scan a corpus of C/C++ sources,
+ * in MB of text a second.  The arguments are files or directories to read the
+ * corpus from, for example /usr/include.  Each round lexes the whole corpus
+ * once, after a few rounds to warm up.
+ * <p>
+ * The Tokens of the two Lexers are compared first, and the benchmark stops at
+ * the first one that differs.  DirectCppLexer is then measured again with a
+ * WordDictionary of words taken from the corpus.
+ * <p>
+ * With -edits cold or -edits warm, the corpus is opened in an editor instead,
+ * and its first keystrokes are timed, with or without the Kit warmed up first.
+ * The JIT has only compiled what ran before them, so each is run in a JVM of
+ * its own.  Painting needs a display.
+ */
+public class LexerBenchmark {
+  private static final int WARMUP = 5;
+  private static final int ROUNDS = 10;
+  private static final int WORDS = 4096;
+  private static final int KEYSTROKES = 50;
+  // the size of the screen painted after each keystroke, in pixels
+  private static final int WIDTH = 900;
+  private static final int HEIGHT = 700;
+
+  public static void main (String[] args) throws Exception {
+    boolean edits = args.length > 1 && args[0].equals("-edits");
+    if (args.length == 0 || (edits && args.length == 2)) {
+      System.err.println("usage: LexerBenchmark [-edits cold|warm] file-or-directory...");
+      System.exit(2);
+    }
+    StringBuilder corpus = new StringBuilder();
+    for (int i = edits ? 2 : 0; i < args.length; i++) {
+      read(new File(args[i]), corpus);
+    }
+    if (edits) {
+      edits(corpus.toString(), args[1].equals("warm"));
+      return;
+    }
+    char[] text = corpus.toString().toCharArray();
+    Segment segment = new Segment(text, 0, text.length);
+    int[] expected = tokens(new CppLexer(), segment);
+    int[] actual = tokens(new DirectCppLexer(), segment);
+    if (!Arrays.equals(expected, actual)) {
+      int i = 0;
+      while (i < expected.length && i < actual.length && expected[i] == actual[i]) {
+        i++;
+      }
+      i -= i % 4;
+      System.err.printf("DirectCppLexer differs from CppLexer at token %d: %s instead of %s%n", i / 4,
+                        describe(actual, i), describe(expected, i));
+      System.exit(1);
+    }
+    System.out.printf("%.1f MB, %d tokens the same%n", text.length / 1e6, expected.length / 4);
+    double cpp = measure("CppLexer", new CppLexer(), segment);
+    double direct = measure("DirectCppLexer", new DirectCppLexer(), segment);
+    WordDictionary words = dictionary(text, expected);
+    double dictionary = measure("DirectCppLexer with words", new DirectCppLexer(words), segment);
+    System.out.printf("best %.1f MB/s for CppLexer, %.1f MB/s for DirectCppLexer, %.1f MB/s with %d words%n",
+                      cpp, direct, dictionary, words.size());
+  }
+
+  /**
+   * Opens text in a JEditorPane and times each of the first keystrokes, an
+   * insert and a paint of the screen around it, as the first edits of a user
+   * after start up.  The Kit is warmed up first if warm is set.
+   */
+  // modelToView is deprecated from Java 9 on, but modelToView2D isn't there in Java 8
+  @SuppressWarnings("deprecation")
+  private static void edits (String text, boolean warm) throws Exception {
+    CppSyntaxKit kit = new CppSyntaxKit();
+    if (warm) {
+      long start = System.nanoTime();
+      kit.warmUp().get();
+      System.out.printf("warm-up done in %d ms%n", (System.nanoTime() - start) / 1000000);
+    }
+    JEditorPane[] pane = new JEditorPane[1];
+    SwingUtilities.invokeAndWait(() -> {
+      pane[0] = new JEditorPane();
+      // the views are made for the old document as the Kit is installed
+      pane[0].setDocument(kit.createDefaultDocument());
+      pane[0].setEditorKit(kit);
+      long start = System.nanoTime();
+      pane[0].setText(text);
+      pane[0].setSize(WIDTH, pane[0].getPreferredSize().height);
+      System.out.printf("opened in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+    });
+    BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    double[] millis = new double[KEYSTROKES];
+    for (int i = 0; i < KEYSTROKES; i++) {
+      int keystroke = i;
+      SwingUtilities.invokeAndWait(() -> {
+        long start = System.nanoTime();
+        try {
+          // typing along a line of the text, a comment every few keystrokes
+          int pos = Math.min(5000 + 37 * keystroke, pane[0].getDocument().getLength());
+          pane[0].getDocument().insertString(pos, (keystroke % 5 == 0) ? "/" : "a", null);
+          Rectangle r = pane[0].modelToView(pos);
+          int y = Math.max(0, r.y - HEIGHT / 2);
+          Graphics g = image.createGraphics();
+          try {
+            g.translate(0, -y);
+            g.setClip(0, y, WIDTH, HEIGHT);
+            pane[0].paint(g);
+          } finally {
+            g.dispose();
+          }
+        } catch (BadLocationException ex) {
+          throw new IllegalStateException(ex);
+        }
+        millis[keystroke] = (System.nanoTime() - start) / 1e6;
+      });
+    }
+    System.out.printf("%s: first keystroke %.1f ms, mean of the first 10 %.1f ms, of the last 10 %.1f ms%n",
+                      warm ? "warm" : "cold", millis[0], mean(millis, 0, 10), mean(millis, KEYSTROKES - 10, KEYSTROKES));
+  }
+
+  private static double mean (double[] values, int from, int to) {
+    double sum = 0;
+    for (int i = from; i < to; i++) {
+      sum += values[i];
+    }
+    return sum / (to - from);
+  }
+
+  /**
+   * Makes a dictionary of every fourth distinct identifier or type of the
+   * corpus, so that many of the words looked up are found
+   */
+  private static WordDictionary dictionary (char[] text, int[] tokens) {
+    Map<String, TokenType> words = new HashMap<>();
+    Map<String, Boolean> seen = new HashMap<>();
+    for (int i = 0; i < tokens.length && words.size() < WORDS; i += 4) {
+      TokenType type = TokenType.values()[tokens[i]];
+      if (type == TokenType.IDENTIFIER || type == TokenType.TYPE) {
+        String word = new String(text, tokens[i + 1], tokens[i + 2]);
+        if (seen.put(word, Boolean.TRUE) == null && seen.size() % 4 == 0) {
+          words.put(word, TokenType.TYPE2);
+        }
+      }
+    }
+    return new WordDictionary(words);
+  }
+
+  /**
+   * Returns the best rate of lexer over the rounds, in MB a second
+   */
+  private static double measure (String name, Lexer lexer, Segment segment) {
+    long[] count = new long[1];
+    TokenSink sink = new TokenSink() {
+      public void token (TokenType type, int start, int length, byte pairValue) {
+        count[0]++;
+      }
+    };
+    double best = 0;
+    for (int round = 0; round < WARMUP + ROUNDS; round++) {
+      count[0] = 0;
+      long start = System.nanoTime();
+      lexer.parse(segment, 0, sink);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      double rate = segment.count / 1e6 / seconds;
+      if (round >= WARMUP) {
+        best = Math.max(best, rate);
+        System.out.printf("%s round %d: %.1f MB/s, %d tokens%n", name, round - WARMUP + 1, rate, count[0]);
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns the type, start, length and pair value of each Token lexer finds
+   * in segment, one after another
+   */
+  private static int[] tokens (Lexer lexer, Segment segment) {
+    int[][] tokens = {new int[1024]};
+    int[] size = new int[1];
+    lexer.parse(segment, 0, new TokenSink() {
+      public void token (TokenType type, int start, int length, byte pairValue) {
+        if (size[0] + 4 > tokens[0].length) {
+          tokens[0] = Arrays.copyOf(tokens[0], 2 * tokens[0].length);
+        }
+        int[] t = tokens[0];
+        t[size[0]++] = type.ordinal();
+        t[size[0]++] = start;
+        t[size[0]++] = length;
+        t[size[0]++] = pairValue;
+      }
+    });
+    return Arrays.copyOf(tokens[0], size[0]);
+  }
+
+  private static String describe (int[] tokens, int i) {
+    if (i >= tokens.length) {
+      return "the end";
+    }
+    return String.format("%s at %d, length %d, pair %d", TokenType.values()[tokens[i]], tokens[i + 1],
+                         tokens[i + 2], tokens[i + 3]);
+  }
+
+  private static void read (File file, StringBuilder corpus) throws IOException {
+    if (file.isDirectory()) {
+      File[] files = file.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          read(f, corpus);
+        }
+      }
+    } else if (file.isFile()) {
+      corpus.append(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+  }
+}
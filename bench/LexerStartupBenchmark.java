@@ -0,0 +1,50 @@
+import cppsyntaxpane.Lexer;
+import cppsyntaxpane.LexerPool;
+import cppsyntaxpane.TokenSink;
+import cppsyntaxpane.TokenType;
+import cppsyntaxpane.lexers.CppLexer;
+
+import javax.swing.JEditorPane;
+import javax.swing.text.Segment;
+
+/**
+ * Measures how long the first document of an application waits for its Lexer
+ * after start up: the time from asking a LexerPool for a Lexer to the end of
+ * lexing a first line, which includes loading the class of the Lexer and
+ * setting up its tables.  A JEditorPane is built first, standing in for the
+ * windows of the application.  With -prepare the pool is prepared before that,
+ * as an application would, so the Lexer is made while the pane is built.
+ * <p>
+ * Only the first Lexer of a JVM is slow to make, so each measurement is run in
+ * a JVM of its own.
+ */
+public class LexerStartupBenchmark {
+  private static final String LINE = "int main (int argc, char **argv) { return argc > 1 ? 0 : 1; }\n";
+
+  public static void main (String[] args) {
+    boolean prepare = args.length > 0 && args[0].equals("-prepare");
+    if (args.length > (prepare ? 1 : 0)) {
+      System.err.println("usage: LexerStartupBenchmark [-prepare]");
+      System.exit(2);
+    }
+    long start = System.nanoTime();
+    LexerPool lexers = new LexerPool(CppLexer::new);
+    if (prepare) {
+      lexers.prepare();
+    }
+    new JEditorPane().setText(LINE);
+    long built = System.nanoTime();
+    Lexer lexer = lexers.acquire();
+    char[] text = LINE.toCharArray();
+    int[] count = new int[1];
+    lexer.parse(new Segment(text, 0, text.length), 0, new TokenSink() {
+      public void token (TokenType type, int start, int length, byte pairValue) {
+        count[0]++;
+      }
+    });
+    long lexed = System.nanoTime();
+    lexers.release(lexer);
+    System.out.printf("%s: pane built in %.1f ms, first line lexed %.1f ms later, %d tokens%n",
+                      prepare ? "prepared" : "not prepared", (built - start) / 1e6, (lexed - built) / 1e6, count[0]);
+  }
+}
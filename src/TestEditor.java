@@ -1,5 +1,5 @@
-import cppsyntaxpane.DefaultSyntaxKit;
-import cppsyntaxpane.lexers.CppLexer;
+import cppsyntaxpane.SyntaxDocument;
+import cppsyntaxpane.syntaxkits.CppSyntaxKit;
 
 import javax.swing.*;
 import javax.swing.text.PlainDocument;
@@ -16,13 +16,16 @@ public class TestEditor extends JFrame {
 
   private TestEditor () {
     setLayout(new BorderLayout());
-    DefaultSyntaxKit synKit = new DefaultSyntaxKit(new CppLexer());
+    CppSyntaxKit synKit = new CppSyntaxKit(CppSyntaxKit.DIRECT_LEXERS);
     JEditorPane codePane = new JEditorPane();
-    synKit.addComponents(codePane);
+    // the kit makes its views as it is installed, so they need its document
+    codePane.setDocument(synKit.createDefaultDocument());
+    codePane.setEditorKit(synKit);
+    // stay responsive on files with huge comments or strings
+    ((SyntaxDocument) codePane.getDocument()).setTimeBudget(20);
     JScrollPane scroll = new JScrollPane(codePane);
     add(scroll, BorderLayout.CENTER);
     doLayout();
-    codePane.setContentType("text/cpp");
     JMenuBar menuBar = new JMenuBar();
     setJMenuBar(menuBar);
     JMenu editMenu = synKit.getEditMenu(codePane);
@@ -42,6 +45,8 @@ public class TestEditor extends JFrame {
       "  // Line comment\n" +
       "  for (int ii = 0; ii < 2; ii++) {\n" +
       "    int jj = ii + 1;\n" +
+      "    asm volatile (\"1: dec %0\\n\\t\"\n" +
+      "                  \"brne 1b ; wait\" : \"+r\" (jj));\n" +
       "  }\n" +
       "}\n"
     );
@@ -71,6 +76,8 @@ public class TestEditor extends JFrame {
   }
 
   public static void main (String[] args) {
+    // set up the lexer tables while the window is being built
+    CppSyntaxKit.DIRECT_LEXERS.prepare();
     new TestEditor();
   }
 }
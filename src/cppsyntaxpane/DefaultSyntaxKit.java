@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
 
 import javax.swing.Action;
 import javax.swing.ActionMap;
@@ -47,15 +48,17 @@ import cppsyntaxpane.components.SyntaxComponent;
  * The DefaultSyntaxKit is the main entry to SyntaxPane.  To use the package, just
  * set the EditorKit of the EditorPane to a new instance of this class.
  * <p>
- * You need to pass a proper lexer to the class.
+ * You need to pass a factory of proper lexers to the class.
  *
  * @author ayman, Hanns Holger Rutz
  */
 public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
   private static final Color    caretColor = new Color(0x000000);
   private static final Color    selectionColor = new Color(0x99CCFF);
-  private static final String[] components = {"cppsyntaxpane.components.PairsMarker", "cppsyntaxpane.components.LineNumbersRuler"};
-  private final Lexer           lexer;
+  private static final String[] components = {"cppsyntaxpane.components.PairsMarker", "cppsyntaxpane.components.LineNumbersRuler",
+                                                  "cppsyntaxpane.components.FoldsTracker"};
+  private final LexerPool       lexers;
+  private LexerPool             embeddedLexers;
   private final Map<JEditorPane, List<SyntaxComponent>> editorComponents = new WeakHashMap<>();
 
   static {
@@ -63,11 +66,69 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
   }
 
   /**
-   * Creates a new Kit for the given language
+   * Creates a new Kit for the given language, whose documents share lexer and
+   * take turns with it
+   *
+   * @deprecated documents lexing at the same time wait for each other, give the
+   * Kit a factory with {@link #DefaultSyntaxKit(LexerFactory)} instead
    */
+  @Deprecated
   public DefaultSyntaxKit (Lexer lexer) {
+    this(LexerPool.of(lexer));
+  }
+
+  /**
+   * Creates a new Kit for the given language.  Each document gets Lexers of
+   * its own from factory, through a pool private to this Kit.
+   */
+  public DefaultSyntaxKit (LexerFactory factory) {
+    this(new LexerPool(factory));
+  }
+
+  /**
+   * Creates a new Kit for the given language, whose documents borrow their
+   * Lexers from lexers.  Kits can share a pool.
+   */
+  public DefaultSyntaxKit (LexerPool lexers) {
     super();
-    this.lexer = lexer;
+    this.lexers = lexers;
+  }
+
+  /**
+   * Sets the Lexers of the assembly in the asm statements of the documents this
+   * Kit creates from now on, or null to leave it unhighlighted
+   *
+   * @see SyntaxDocument#setEmbeddedLexers(LexerPool)
+   */
+  public void setEmbeddedLexers (LexerPool lexers) {
+    embeddedLexers = lexers;
+  }
+
+  public LexerPool getEmbeddedLexers () {
+    return embeddedLexers;
+  }
+
+  /**
+   * Returns the pool the documents of this Kit borrow their Lexers from
+   */
+  public LexerPool getLexers () {
+    return lexers;
+  }
+
+  /**
+   * Starts warming up the code that lexes, edits and paints the documents of
+   * this Kit, so that it is compiled by the JIT before the user's first edits
+   * instead of running interpreted through them.  A made up text is lexed and
+   * edited on a thread of the lowest priority, and then painted on the event
+   * dispatch thread a frame at a time.  An application calls this at start up,
+   * if it wants to.
+   * <p>
+   * Kits sharing a pool share the warm-up, which is only started once.
+   *
+   * @return completed when the warm-up is done, or exceptionally if it failed
+   */
+  public CompletableFuture<Void> warmUp () {
+    return WarmUp.start(this, lexers);
   }
 
   @Override
@@ -161,6 +222,10 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
     menu.addSeparator();
     menu.add(menuItem(ePane, "Goto Line Number", "goto-line",        "GotoLineAction",       getKey(KeyEvent.VK_G, CTRL)));
     menu.add(menuItem(ePane, "Toggle Comments", "toggle-comments",   "ToggleCommentsAction", getKey(KeyEvent.VK_SLASH, CTRL)));
+    menu.addSeparator();
+    menu.add(menuItem(ePane, "Toggle Fold", "toggle-fold",           "ToggleFoldAction",     getKey(KeyEvent.VK_MINUS, CMD)));
+    menu.add(menuItem(ePane, "Fold All",    "fold-all",              "FoldAllAction",        getKey(KeyEvent.VK_MINUS, CMD + SHIFT)));
+    menu.add(menuItem(ePane, "Unfold All",  "unfold-all",            "UnfoldAllAction",      getKey(KeyEvent.VK_EQUALS, CMD + SHIFT)));
     return menu;
   }
 
@@ -186,10 +251,14 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
     editorComponents.clear();
     editorPane.getInputMap().clear();
     ActionMap m = editorPane.getActionMap();
-    for (Object key : editorPane.getActionMap().keys()) {
-      Action a = m.get(key);
-      if (a instanceof SyntaxAction) {
-        ((SyntaxAction) a).deinstall(editorPane);
+    // null if the pane has no actions of its own
+    Object[] keys = m.keys();
+    if (keys != null) {
+      for (Object key : keys) {
+        Action a = m.get(key);
+        if (a instanceof SyntaxAction) {
+          ((SyntaxAction) a).deinstall(editorPane);
+        }
       }
     }
     m.clear();
@@ -198,12 +267,13 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
   /**
    * This is called by Swing to create a Document for the JEditorPane document
    * This may be called before you actually get a reference to the control.
-   * We use it here to create a proper lexer and pass it to the
-   * SyntaxDocument we return.
+   * We use it here to pass our pool of lexers to the SyntaxDocument we return.
    */
   @Override
   public Document createDefaultDocument () {
-    return new SyntaxDocument(lexer);
+    SyntaxDocument doc = new SyntaxDocument(lexers);
+    doc.setEmbeddedLexers(embeddedLexers);
+    return doc;
   }
 
   /**
@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.text.Segment;
+
+/**
+ * The Tokens of the regions of a document written in another language, like
+ * the assembly in the template strings of asm statements.  A region is lexed
+ * by a Lexer of its language the first time its Tokens are asked for, which is
+ * when it is painted, so regions that are never shown are never lexed.
+ * <p>
+ * The Tokens are kept by the text of the region, so a region moved by an edit
+ * before it is not lexed again, and an edited one is.  Only the regions used
+ * last are kept.  The text is looked up where it is in the document, and only
+ * copied for a region lexed anew, so painting a region doesn't allocate.
+ */
+final class EmbeddedTokens {
+  // the number of regions whose Tokens are kept
+  private static final int MAX_REGIONS = 1024;
+
+  private final LexerPool         lexers;
+  private final Map<Key, Region>  regions = new LinkedHashMap<Key, Region>(64, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry (Map.Entry<Key, Region> eldest) {
+      return size() > MAX_REGIONS;
+    }
+  };
+  // the Key regions are looked up with, set to the text asked for while regions is locked
+  private final Key               probe = new Key();
+
+  EmbeddedTokens (LexerPool lexers) {
+    this.lexers = lexers;
+  }
+
+  LexerPool getLexers () {
+    return lexers;
+  }
+
+  /**
+   * Returns the Tokens of the region whose text is in segment, starting at the
+   * document offset start
+   */
+  Region get (Segment segment, int start) {
+    Region region;
+    synchronized (regions) {
+      probe.set(segment.array, segment.offset, segment.count);
+      region = regions.get(probe);
+      if (region != null && region.start != start) {
+        // moved by an edit, it is kept where it is painted from now on
+        region = region.moveTo(start);
+        regions.replace(probe, region);
+      }
+      // don't hold on to the text of the document
+      probe.set(null, 0, 0);
+    }
+    if (region == null) {
+      List<Token> tokens = new ArrayList<>();
+      Lexer lexer = lexers.acquire();
+      try {
+        // lexed where the region is, so the Tokens have its offsets
+        lexer.parse(segment, start, tokens);
+      } finally {
+        lexers.release(lexer);
+      }
+      region = new Region(start, start + segment.count, 0, tokens.toArray(new Token[tokens.size()]));
+      Key key = new Key();
+      key.set(Arrays.copyOfRange(segment.array, segment.offset, segment.offset + segment.count), 0, segment.count);
+      synchronized (regions) {
+        regions.put(key, region);
+      }
+    }
+    return region;
+  }
+
+  /**
+   * The text of a region, which may be part of a larger array
+   */
+  private static final class Key {
+    private char[] array;
+    private int    offset;
+    private int    count;
+    private int    hash;
+
+    void set (char[] array, int offset, int count) {
+      this.array = array;
+      this.offset = offset;
+      this.count = count;
+      int h = 0;
+      for (int ii = 0; ii < count; ii++) {
+        h = 31 * h + array[offset + ii];
+      }
+      hash = h;
+    }
+
+    @Override
+    public int hashCode () {
+      return hash;
+    }
+
+    @Override
+    public boolean equals (Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      if (other.count != count || other.hash != hash) {
+        return false;
+      }
+      for (int ii = 0; ii < count; ii++) {
+        if (array[offset + ii] != other.array[other.offset + ii]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A region and its Tokens.  The Tokens are shared by the regions with the same
+   * text, at the offsets of the one that was lexed, so shift has to be added to
+   * them.
+   */
+  static final class Region {
+    final int     start;
+    final int     end;
+    final int     shift;
+    final Token[] tokens;
+
+    private Region (int start, int end, int shift, Token[] tokens) {
+      this.start = start;
+      this.end = end;
+      this.shift = shift;
+      this.tokens = tokens;
+    }
+
+    private Region moveTo (int offset) {
+      if (offset == start) {
+        return this;
+      }
+      return new Region(offset, end + offset - start, shift + offset - start, tokens);
+    }
+  }
+}
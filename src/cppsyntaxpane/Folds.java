@@ -0,0 +1,612 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane;
+
+import java.util.Arrays;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+
+/**
+ * The folded regions of a SyntaxDocument.  A fold is a block between { and }
+ * or a block comment, whose lines after the first are hidden up to the line
+ * closing it.  Views show the lines that aren't hidden one after another, as
+ * rows, which this maps to and from lines.
+ * <p>
+ * Folds are kept as Positions of the document, so they follow edits without a
+ * rescan.  The outermost folds don't overlap, and are sorted by start with the
+ * number of lines each hides summed up in a Fenwick tree: a row is mapped to
+ * its line with a binary search over them.  An edit only changes the lines
+ * hidden by the fold it is in.  An edit that takes away the { or } of a fold,
+ * or leaves it no lines to hide, unfolds it.
+ * <p>
+ * Folds may nest: unfolding one shows the folds inside it still folded.  The
+ * nested folds are kept aside, and aren't looked at until then.
+ * <p>
+ * Folds are used on the event dispatch thread.  Each change fires a FOLDS
+ * property change of the document.
+ */
+public final class Folds {
+  private static final Position[] NONE = {};
+  private static final int        CURLY = 3;
+
+  private final SyntaxDocument doc;
+  private final Segment        segment = new Segment();
+  // the outermost folds sorted by start: the positions of their first and last
+  // characters, and the number of lines each hides
+  private Position[] firsts = NONE;
+  private Position[] lasts = NONE;
+  private int[]      hidden = new int[0];
+  private int        size;
+  // Fenwick tree of hidden, indexed from 1
+  private int[]      hiddenTree = new int[1];
+  // the folds nested in the outermost ones, sorted by start
+  private Position[] innerFirsts = NONE;
+  private Position[] innerLasts = NONE;
+  private int        innerSize;
+
+  Folds (SyntaxDocument doc) {
+    this.doc = doc;
+  }
+
+  /**
+   * Returns whether nothing is folded
+   */
+  public boolean isEmpty () {
+    return size == 0;
+  }
+
+  /**
+   * Folds the region from start up to end, which starts with a { and ends with
+   * its }, or is a block comment.  A region nested in a fold stays hidden until
+   * that is unfolded.
+   *
+   * @return false if it isn't such a region, it has no lines to hide, or it is
+   * folded already
+   */
+  public boolean fold (int start, int end) {
+    int last = end - 1;
+    int lines = linesHidden(start, last);
+    if (lines <= 0) {
+      return false;
+    }
+    try {
+      int i = indexOf(start);
+      int j = (i < size && firsts[i].getOffset() == start) ? i : i - 1;
+      if (j >= 0 && lasts[j].getOffset() >= last) {
+        // nested in a fold
+        if (firsts[j].getOffset() == start && lasts[j].getOffset() == last) {
+          return false;
+        }
+        addInner(doc.createPosition(start), doc.createPosition(last));
+      } else {
+        // the folds inside the region are nested in it now, and the ones
+        // overlapping it are dropped
+        int from = (j >= 0 && lasts[j].getOffset() >= start) ? j : i;
+        int to = i;
+        while (to < size && firsts[to].getOffset() <= last) {
+          to++;
+        }
+        for (int k = from; k < to; k++) {
+          if (firsts[k].getOffset() >= start && lasts[k].getOffset() <= last) {
+            addInner(firsts[k], lasts[k]);
+          }
+        }
+        removeTops(from, to);
+        insertTops(from, 1);
+        firsts[from] = doc.createPosition(start);
+        lasts[from] = doc.createPosition(last);
+        hidden[from] = lines;
+        rebuildTree();
+      }
+    } catch (BadLocationException ex) {
+      return false;
+    }
+    changed();
+    return true;
+  }
+
+  /**
+   * Unfolds the folds starting on line
+   *
+   * @return false if there are none
+   */
+  public boolean unfold (int line) {
+    Element root = doc.getDefaultRootElement();
+    if (line < 0 || line >= root.getElementCount()) {
+      return false;
+    }
+    Element e = root.getElement(line);
+    int k = indexOf(e.getStartOffset());
+    if (k == size || firsts[k].getOffset() >= e.getEndOffset()) {
+      return false;
+    }
+    // the folds inside that start on the line too are unfolded with them
+    while (k < size && firsts[k].getOffset() < e.getEndOffset()) {
+      unfoldAt(k);
+    }
+    rebuildTree();
+    changed();
+    return true;
+  }
+
+  /**
+   * Unfolds the folds hiding the line of pos, such as when the caret is moved
+   * there
+   *
+   * @return false if it isn't hidden
+   */
+  public boolean reveal (int pos) {
+    Element root = doc.getDefaultRootElement();
+    int line = root.getElementIndex(pos);
+    int start = root.getElement(line).getStartOffset();
+    boolean revealed = false;
+    int j = indexOf(start) - 1;
+    while (j >= 0 && line <= firstLine(j) + hidden[j]) {
+      unfoldAt(j);
+      revealed = true;
+      j = indexOf(start) - 1;
+    }
+    if (revealed) {
+      rebuildTree();
+      changed();
+    }
+    return revealed;
+  }
+
+  /**
+   * Unfolds the folds starting on the line of pos.  If there are none, folds
+   * the first region starting on the line, or else the innermost region around
+   * pos with lines to hide.
+   *
+   * @return false if there is nothing to fold
+   */
+  public boolean toggle (int pos) {
+    if (toggleLine(doc.getDefaultRootElement().getElementIndex(pos))) {
+      return true;
+    }
+    Token t = doc.getTokenAt(pos);
+    if (t != null && t.type == TokenType.COMMENT && fold(t.start, t.end())) {
+      return true;
+    }
+    for (Scope scope = doc.getScopeAt(pos); scope != null; scope = doc.getScopeAt(scope.start)) {
+      if (fold(scope.start, scope.end + 1)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Unfolds the folds starting on line.  If there are none, folds the first
+   * region starting on it with lines to hide.
+   *
+   * @return false if there is nothing to fold
+   */
+  public boolean toggleLine (int line) {
+    if (unfold(line)) {
+      return true;
+    }
+    Element root = doc.getDefaultRootElement();
+    if (line < 0 || line >= root.getElementCount()) {
+      return false;
+    }
+    Element e = root.getElement(line);
+    SyntaxDocument.TokenCursor tok = doc.getTokens(line, e.getStartOffset(), e.getEndOffset());
+    while (tok.next()) {
+      int end;
+      if (tok.start() < e.getStartOffset()) {
+        continue;
+      } else if (tok.type() == TokenType.COMMENT) {
+        end = tok.end();
+      } else if (tok.pairValue() == CURLY) {
+        Token pair = doc.getPairFor(tok.toToken());
+        if (pair == null) {
+          continue;
+        }
+        end = pair.end();
+      } else {
+        continue;
+      }
+      if (fold(tok.start(), end)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Folds every block between { and } and every block comment with lines to
+   * hide, in one pass over the Tokens
+   */
+  public void foldAll () {
+    Element root = doc.getDefaultRootElement();
+    // regions as first << 32 | last, so that sorting them sorts by start
+    long[] found = new long[16];
+    int count = 0;
+    int[] open = new int[16];
+    int depth = 0;
+    SyntaxDocument.TokenCursor tok = doc.getTokens(0, doc.getLength());
+    while (tok.next()) {
+      int first;
+      int last;
+      if (tok.type() == TokenType.COMMENT) {
+        first = tok.start();
+        last = tok.end() - 1;
+      } else if (tok.pairValue() == CURLY) {
+        if (depth == open.length) {
+          open = Arrays.copyOf(open, depth * 2);
+        }
+        open[depth++] = tok.start();
+        continue;
+      } else if (tok.pairValue() == -CURLY && depth > 0) {
+        first = open[--depth];
+        last = tok.start();
+      } else {
+        continue;
+      }
+      if (count == found.length) {
+        found = Arrays.copyOf(found, count * 2);
+      }
+      found[count++] = (long) first << 32 | last;
+    }
+    // with the ones folded already
+    found = Arrays.copyOf(found, count + size + innerSize);
+    for (int k = 0; k < size; k++) {
+      found[count++] = (long) firsts[k].getOffset() << 32 | lasts[k].getOffset();
+    }
+    for (int k = 0; k < innerSize; k++) {
+      found[count++] = (long) innerFirsts[k].getOffset() << 32 | innerLasts[k].getOffset();
+    }
+    Arrays.sort(found, 0, count);
+    removeTops(0, size);
+    Arrays.fill(innerFirsts, 0, innerSize, null);
+    Arrays.fill(innerLasts, 0, innerSize, null);
+    innerSize = 0;
+    // the regions not inside an earlier one are the outermost.  The Positions
+    // are created in order, which the document does in constant time.
+    int end = -1;
+    try {
+      for (int k = 0; k < count; k++) {
+        int first = (int) (found[k] >>> 32);
+        int last = (int) found[k];
+        if (k + 1 < count && (int) (found[k + 1] >>> 32) == first) {
+          // the same start, keep the last one
+          continue;
+        }
+        if (first > end) {
+          int lines = linesHidden(first, last);
+          if (lines > 0) {
+            insertTops(size, 1);
+            firsts[size - 1] = doc.createPosition(first);
+            lasts[size - 1] = doc.createPosition(last);
+            hidden[size - 1] = lines;
+            end = last;
+          }
+        } else if (root.getElementIndex(last) - root.getElementIndex(first) >= 2) {
+          addInner(doc.createPosition(first), doc.createPosition(last));
+        }
+      }
+    } catch (BadLocationException ex) {
+      throw new IllegalStateException(ex);
+    }
+    rebuildTree();
+    changed();
+  }
+
+  /**
+   * Unfolds everything
+   */
+  public void unfoldAll () {
+    if (size > 0 || innerSize > 0) {
+      removeTops(0, size);
+      Arrays.fill(innerFirsts, 0, innerSize, null);
+      Arrays.fill(innerLasts, 0, innerSize, null);
+      innerSize = 0;
+      rebuildTree();
+      changed();
+    }
+  }
+
+  /**
+   * Returns whether a fold starts on line, so the lines after it are hidden
+   */
+  public boolean isFolded (int line) {
+    Element e = doc.getDefaultRootElement().getElement(line);
+    int k = indexOf(e.getStartOffset());
+    return k < size && firsts[k].getOffset() < e.getEndOffset();
+  }
+
+  /**
+   * Returns whether line is hidden by a fold
+   */
+  public boolean isHidden (int line) {
+    int j = indexOf(doc.getDefaultRootElement().getElement(line).getStartOffset()) - 1;
+    return j >= 0 && line <= firstLine(j) + hidden[j];
+  }
+
+  /**
+   * Returns the first line hidden after the shown line, or the number of lines
+   * if there is none.  The lines from line up to it are shown in consecutive rows.
+   */
+  public int nextHidden (int line) {
+    Element root = doc.getDefaultRootElement();
+    int k = indexOf(root.getElement(line).getStartOffset());
+    return (k < size) ? firstLine(k) + 1 : root.getElementCount();
+  }
+
+  /**
+   * Returns the number of lines that aren't hidden
+   */
+  public int getRowCount () {
+    return doc.getDefaultRootElement().getElementCount() - hiddenBefore(size);
+  }
+
+  /**
+   * Returns the row line is shown in, which for a hidden line is that of the
+   * line its fold starts on
+   */
+  public int lineToRow (int line) {
+    if (size == 0) {
+      return line;
+    }
+    int j = indexOf(doc.getDefaultRootElement().getElement(line).getStartOffset()) - 1;
+    if (j < 0) {
+      return line;
+    }
+    int first = firstLine(j);
+    if (line <= first + hidden[j]) {
+      return first - hiddenBefore(j);
+    }
+    return line - hiddenBefore(j + 1);
+  }
+
+  /**
+   * Returns the line shown in row
+   */
+  public int rowToLine (int row) {
+    // the number of folds whose first line is shown before row
+    int lo = 0;
+    int hi = size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (firstLine(mid) - hiddenBefore(mid) < row) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return row + hiddenBefore(lo);
+  }
+
+  /*
+   * Called by the document for each edit.  Only the outermost folds the edit
+   * is in or touches can hide other lines now, or have lost their ends, such
+   * as by typing between the * and / closing a comment.
+   */
+  void update (DocumentEvent e) {
+    if (size == 0) {
+      return;
+    }
+    int offset = e.getOffset();
+    int end = (e.getType() == DocumentEvent.EventType.INSERT) ? offset + e.getLength() : offset;
+    // the outermost folds don't overlap, so their ends are sorted too
+    int lo = 0;
+    int hi = size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (lasts[mid].getOffset() < offset) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    boolean unfolded = false;
+    for (int k = lo; k < size && firsts[k].getOffset() <= end; ) {
+      int lines = linesHidden(firsts[k].getOffset(), lasts[k].getOffset());
+      if (lines <= 0) {
+        unfoldAt(k);
+        unfolded = true;
+      } else {
+        if (!unfolded && lines != hidden[k]) {
+          for (int n = k + 1; n <= size; n += n & -n) {
+            hiddenTree[n] += lines - hidden[k];
+          }
+        }
+        hidden[k++] = lines;
+      }
+    }
+    if (unfolded) {
+      rebuildTree();
+      changed();
+    }
+  }
+
+  /*
+   * Unfolds the outermost fold k.  The outermost of the folds nested in it take
+   * its place, except for those edits have broken.  The tree is rebuilt by the
+   * caller.
+   */
+  private void unfoldAt (int k) {
+    int first = firsts[k].getOffset();
+    int last = lasts[k].getOffset();
+    removeTops(k, k + 1);
+    int from = innerIndexOf(first);
+    int to = innerIndexOf(last + 1);
+    int kept = from;
+    int end = -1;
+    for (int i = from; i < to; i++) {
+      int f = innerFirsts[i].getOffset();
+      int l = innerLasts[i].getOffset();
+      if (f > end && l <= last) {
+        int lines = linesHidden(f, l);
+        if (lines > 0) {
+          insertTops(k, 1);
+          firsts[k] = innerFirsts[i];
+          lasts[k] = innerLasts[i];
+          hidden[k] = lines;
+          k++;
+          end = l;
+        }
+        // taken out either way
+        continue;
+      }
+      innerFirsts[kept] = innerFirsts[i];
+      innerLasts[kept] = innerLasts[i];
+      kept++;
+    }
+    System.arraycopy(innerFirsts, to, innerFirsts, kept, innerSize - to);
+    System.arraycopy(innerLasts, to, innerLasts, kept, innerSize - to);
+    int removed = to - kept;
+    Arrays.fill(innerFirsts, innerSize - removed, innerSize, null);
+    Arrays.fill(innerLasts, innerSize - removed, innerSize, null);
+    innerSize -= removed;
+  }
+
+  private void addInner (Position first, Position last) {
+    int i = innerIndexOf(first.getOffset());
+    if (i < innerSize && innerFirsts[i].getOffset() == first.getOffset()) {
+      innerLasts[i] = last;
+      return;
+    }
+    if (innerSize == innerFirsts.length) {
+      int capacity = Math.max(16, innerSize + (innerSize >> 1));
+      innerFirsts = Arrays.copyOf(innerFirsts, capacity);
+      innerLasts = Arrays.copyOf(innerLasts, capacity);
+    }
+    System.arraycopy(innerFirsts, i, innerFirsts, i + 1, innerSize - i);
+    System.arraycopy(innerLasts, i, innerLasts, i + 1, innerSize - i);
+    innerFirsts[i] = first;
+    innerLasts[i] = last;
+    innerSize++;
+  }
+
+  /*
+   * Returns the number of lines the region from first to last hides, or -1 if
+   * it doesn't open and close a region
+   */
+  private int linesHidden (int first, int last) {
+    if (first < 0 || last - first < 3 || last >= doc.getLength()) {
+      return -1;
+    }
+    try {
+      doc.getText(first, 2, segment);
+      char open = segment.first();
+      char star = segment.next();
+      doc.getText(last - 1, 2, segment);
+      char close = segment.last();
+      if (!(open == '{' && close == '}') &&
+          !(open == '/' && star == '*' && close == '/' && segment.first() == '*')) {
+        return -1;
+      }
+    } catch (BadLocationException ex) {
+      return -1;
+    }
+    Element root = doc.getDefaultRootElement();
+    return root.getElementIndex(last) - root.getElementIndex(first) - 1;
+  }
+
+  private int firstLine (int k) {
+    return doc.getDefaultRootElement().getElementIndex(firsts[k].getOffset());
+  }
+
+  /*
+   * Returns the number of lines hidden by the outermost folds before fold k
+   */
+  private int hiddenBefore (int k) {
+    int sum = 0;
+    for (int n = k; n > 0; n -= n & -n) {
+      sum += hiddenTree[n];
+    }
+    return sum;
+  }
+
+  private void rebuildTree () {
+    if (hiddenTree.length < size + 1) {
+      hiddenTree = new int[firsts.length + 1];
+    }
+    System.arraycopy(hidden, 0, hiddenTree, 1, size);
+    for (int n = 1; n <= size; n++) {
+      int parent = n + (n & -n);
+      if (parent <= size) {
+        hiddenTree[parent] += hiddenTree[n];
+      }
+    }
+  }
+
+  /*
+   * Returns the index of the first outermost fold starting at or after pos
+   */
+  private int indexOf (int pos) {
+    int lo = 0;
+    int hi = size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (firsts[mid].getOffset() < pos) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /*
+   * Returns the index of the first nested fold starting at or after pos
+   */
+  private int innerIndexOf (int pos) {
+    int lo = 0;
+    int hi = innerSize;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (innerFirsts[mid].getOffset() < pos) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private void insertTops (int at, int count) {
+    if (size + count > firsts.length) {
+      int capacity = Math.max(size + count, Math.max(16, size + (size >> 1)));
+      firsts = Arrays.copyOf(firsts, capacity);
+      lasts = Arrays.copyOf(lasts, capacity);
+      hidden = Arrays.copyOf(hidden, capacity);
+    }
+    System.arraycopy(firsts, at, firsts, at + count, size - at);
+    System.arraycopy(lasts, at, lasts, at + count, size - at);
+    System.arraycopy(hidden, at, hidden, at + count, size - at);
+    size += count;
+  }
+
+  private void removeTops (int from, int to) {
+    System.arraycopy(firsts, to, firsts, from, size - to);
+    System.arraycopy(lasts, to, lasts, from, size - to);
+    System.arraycopy(hidden, to, hidden, from, size - to);
+    Arrays.fill(firsts, size - (to - from), size, null);
+    Arrays.fill(lasts, size - (to - from), size, null);
+    size -= to - from;
+  }
+
+  private void changed () {
+    doc.foldsChanged();
+  }
+
+  @Override
+  public String toString () {
+    return "Folds(" + size + " outermost, " + innerSize + " nested)";
+  }
+}
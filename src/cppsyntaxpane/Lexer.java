@@ -13,25 +13,121 @@
  */
 package cppsyntaxpane;
 
+import java.util.ArrayList;
 import java.util.List;
 import javax.swing.text.Segment;
 
 /**
- * Lexers must implement these methods.  These are used in the Tokenizer 
- * 
- * A Lexer should be tied to one document.
+ * Lexers must implement one of the parse methods, each of them is built on the
+ * other by default.  The methods that scan one Token at a time, from
+ * {@link #start} on, replay the Tokens of a parse by default, which makes a
+ * document lex all of its text again after every edit.  A Lexer that implements
+ * them itself lets it re-lex only the lines an edit changes.
+ * <p>
+ * A Lexer does one scan at a time.  Documents borrow theirs from a LexerPool,
+ * so the same Lexer may scan for several documents and threads in turn.
  * 
  * @author Ayman Al-Sairafi
  */
 public interface Lexer {
     /**
-     * This is the only method a Lexer needs to implement.  It will be passed
-     * a Reader, and it should return non-overlapping Tokens for each recognized token
-     * in the stream.
+     * Adds non-overlapping Tokens for each recognized token in the segment to a
+     * List.  By default this makes a Token object for each one, on top of
+     * {@link #parse(Segment, int, TokenSink)}.
      * @param segment Text to parse.
      * @param ofst offset to add to start of each token (useful for nesting)
      * @param tokens List of Tokens to be added.  This is done so that the caller creates the
      * appropriate List implementation and size.  The parse method just adds to the list
      */
-    void parse(Segment segment, int ofst, List<Token> tokens);
+    default void parse(Segment segment, int ofst, List<Token> tokens) {
+        parse(segment, ofst, (type, start, length, pairValue) ->
+            tokens.add(new Token(type, start, length, pairValue)));
+    }
+
+    /**
+     * Parses the segment like {@link #parse(Segment, int, List)}, but hands each
+     * Token to sink as it is found instead of adding it to a List.  By default
+     * the Tokens are collected in a List first.
+     * @param segment Text to parse.
+     * @param ofst offset to add to start of each token (useful for nesting)
+     * @param sink receives the Tokens in order
+     */
+    default void parse(Segment segment, int ofst, TokenSink sink) {
+        List<Token> tokens = new ArrayList<>();
+        parse(segment, ofst, tokens);
+        for (Token t : tokens) {
+            sink.token(t.type, t.start, t.length, t.pairValue);
+        }
+    }
+
+    /**
+     * Starts scanning a part of a document one Token at a time, so that the caller
+     * can stop as soon as it has seen enough.  The Lexer may read the segment's
+     * array in place, so it must not be modified until the scan is done.
+     * @param segment Text to scan.
+     * @param ofst document offset of the first character of segment
+     * @param state checkpoint to resume from, or null to start at the beginning of
+     * segment, which must then be a Token boundary.  When resuming, segment must
+     * begin at or before state.start.
+     * @param last true if segment runs to the end of the document.  Otherwise the
+     * Lexer stops when it needs text past the end of segment, and the scan can be
+     * resumed from {@link #getState(LexerState)} with a segment that runs further.
+     * @param listener receives a checkpoint at each line start, or null
+     */
+    default void start(Segment segment, int ofst, LexerState state, boolean last, CheckpointListener listener) {
+        TokenReplay.of(this).start(this, segment, ofst, state, last, listener);
+    }
+
+    /**
+     * Scans the next Token of the segment passed to {@link #start}.
+     * The position and pair value of the Token can then be read with
+     * {@link #getTokenStart()}, {@link #getTokenLength()} and {@link #getPairValue()}.
+     * @return the TokenType of the Token, or null if the Lexer stopped at the end of
+     * the segment, or because the CheckpointListener asked it to
+     */
+    default TokenType next() {
+        return TokenReplay.of(this).next();
+    }
+
+    /**
+     * Returns the document offset of the Token last returned by {@link #next()}
+     */
+    default int getTokenStart() {
+        return TokenReplay.of(this).getTokenStart();
+    }
+
+    /**
+     * Returns the length of the Token last returned by {@link #next()}
+     */
+    default int getTokenLength() {
+        return TokenReplay.of(this).getTokenLength();
+    }
+
+    /**
+     * Returns the pair value of the Token last returned by {@link #next()}
+     */
+    default byte getPairValue() {
+        return TokenReplay.of(this).getPairValue();
+    }
+
+    /**
+     * Stores the checkpoint the Lexer would resume from into state.  After
+     * {@link #next()} returned null this is where the Lexer stopped.
+     */
+    default void getState(LexerState state) {
+        TokenReplay.of(this).getState(state);
+    }
+
+    /**
+     * Receives the checkpoints a Lexer records at the start of each line it scans.
+     */
+    interface CheckpointListener {
+        /**
+         * Called the first time the Lexer is about to look at the first character of a
+         * line (or the end of the document after a final newline).  The state is only
+         * valid during the call.
+         * @return false to make the Lexer stop scanning
+         */
+        boolean checkpoint(LexerState state);
+    }
 }
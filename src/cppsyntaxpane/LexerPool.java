@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane;
+
+import java.util.ArrayDeque;
+
+/**
+ * Lends out Lexers made by a LexerFactory.  A Lexer holds the state of the scan
+ * it is doing, so every scan running at the same time needs a Lexer of its own.
+ * Rather than making a new one for each scan, documents and threads borrow one
+ * with {@link #acquire()} and give it back with {@link #release(Lexer)}.
+ * <p>
+ * A pool can be shared by any number of documents and threads.
+ */
+public final class LexerPool {
+  // the number of idle Lexers kept for reuse, more are dropped
+  private static final int MAX_IDLE = 2 * Runtime.getRuntime().availableProcessors();
+
+  // null in a pool of a single Lexer
+  private final LexerFactory      factory;
+  private final ArrayDeque<Lexer> idle = new ArrayDeque<>();
+
+  public LexerPool (LexerFactory factory) {
+    this.factory = factory;
+  }
+
+  /**
+   * Returns a pool lending out lexer and nothing else, for the callers that
+   * still hand a document a single Lexer.  It is lent to one scan at a time, so
+   * scans that could run at once wait for each other instead.
+   */
+  static LexerPool of (Lexer lexer) {
+    LexerPool pool = new LexerPool(null);
+    pool.release(lexer);
+    return pool;
+  }
+
+  /**
+   * Returns whether this pool lends out a single Lexer, so a scan must not
+   * borrow another one before giving back the one it has
+   */
+  boolean isSingle () {
+    return factory == null;
+  }
+
+  /**
+   * Returns an idle Lexer, or a new one if there is none.  It must be given
+   * back with {@link #release(Lexer)} once the scan is done.  A pool of a single
+   * Lexer waits for it to be given back instead.
+   */
+  public Lexer acquire () {
+    synchronized (idle) {
+      // the one released last is the most likely to still be in the cache
+      Lexer lexer = idle.pollFirst();
+      if (lexer != null) {
+        return lexer;
+      }
+      if (factory == null) {
+        boolean interrupted = false;
+        while ((lexer = idle.pollFirst()) == null) {
+          try {
+            idle.wait();
+          } catch (InterruptedException ex) {
+            interrupted = true;
+          }
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+        return lexer;
+      }
+    }
+    return factory.createLexer();
+  }
+
+  /**
+   * Makes a Lexer on a background thread and leaves it idle in the pool.  Making
+   * the first Lexer of a language loads its class and unpacks its tables, so an
+   * application calls this at start up to have that done while it builds its
+   * windows, instead of on the event thread when the first document is lexed.
+   */
+  public void prepare () {
+    if (factory == null) {
+      return;
+    }
+    Thread thread = new Thread(() -> release(factory.createLexer()), "LexerPool prepare");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Gives back a Lexer obtained from {@link #acquire()}
+   */
+  public void release (Lexer lexer) {
+    synchronized (idle) {
+      if (idle.size() < MAX_IDLE) {
+        idle.addFirst(lexer);
+        if (factory == null) {
+          idle.notify();
+        }
+      }
+    }
+  }
+
+  @Override
+  public String toString () {
+    return "LexerPool(" + factory + ")";
+  }
+}
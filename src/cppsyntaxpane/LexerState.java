@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane;
+
+/**
+ * A checkpoint of a Lexer somewhere in a document, possibly in the middle of a
+ * Token such as a block comment.  Resuming a Lexer from a checkpoint produces
+ * exactly the Tokens it would have produced had it carried on scanning.
+ * <p>
+ * A checkpoint is recorded the first time the Lexer is about to look at the
+ * character at position, so nothing the Lexer did before it depends on the text
+ * from position on.  It stays valid for any edit at or after position.
+ * <p>
+ * Instances are mutable holders that are filled in by the Lexer, so that
+ * recording checkpoints allocates nothing.
+ */
+public final class LexerState {
+  /**
+   * Lexer specific state, such as the DFA state and lexical state.  This is
+   * 0 on a Token boundary with the Lexer in its initial lexical state
+   */
+  public int state;
+  /**
+   * document offset where scanning continues
+   */
+  public int position;
+  /**
+   * document offset where the pending match started
+   */
+  public int start;
+  /**
+   * document offset of the end of the longest match found so far, which is
+   * where the Lexer backs up to if the pending match can't be extended
+   */
+  public int marked;
+
+  public void set (int state, int position, int start, int marked) {
+    this.state = state;
+    this.position = position;
+    this.start = start;
+    this.marked = marked;
+  }
+
+  @Override
+  public String toString () {
+    return String.format("LexerState(%d, %d, %d, %d)", state, position, start, marked);
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane;
+
+/**
+ * A block of text between a pair of { and } Tokens.  Scopes nest like a tree,
+ * whose nodes are found with {@link SyntaxDocument#getScopeAt(int)}: the scope
+ * around a Scope is the one at its start.
+ * <p>
+ * Like Tokens, Scopes are values that don't follow later edits of the document.
+ */
+public final class Scope {
+  /**
+   * document offset of the { opening the scope
+   */
+  public final int start;
+  /**
+   * document offset of the } closing the scope, or the end of the document if
+   * it isn't closed
+   */
+  public final int end;
+  /**
+   * number of scopes this one is in, plus one
+   */
+  public final int depth;
+
+  public Scope (int start, int end, int depth) {
+    this.start = start;
+    this.end = end;
+    this.depth = depth;
+  }
+
+  /**
+   * Returns whether pos is inside the scope, after the { and up to the }
+   */
+  public boolean contains (int pos) {
+    return pos > start && pos <= end;
+  }
+
+  @Override
+  public String toString () {
+    return String.format("Scope(%d, %d, %d)", start, end, depth);
+  }
+}
@@ -17,14 +17,17 @@ package cppsyntaxpane;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.swing.SwingUtilities;
 import javax.swing.event.DocumentEvent;
 import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
@@ -34,180 +37,1553 @@ import javax.swing.text.Segment;
 
 /**
  * A document that supports being highlighted.  The document maintains an
- * internal List of all the Tokens.  The Tokens are updated using
- * a Lexer, passed to it during construction.
+ * internal store of all the Tokens, kept in primitive arrays.  The Tokens are
+ * updated using a Lexer, passed to it during construction.
+ * <p>
+ * The document also keeps the Lexer's checkpoint at the start of every line.
+ * After an edit the Lexer resumes from the checkpoint of the edited line, and
+ * stops at the first line start past the edit where it arrives in the same
+ * state as before.  Only the lines in between are re-lexed.
+ * <p>
+ * In asynchronous mode the lexing is done on a background thread instead, see
+ * {@link #setAsynchronous(boolean)}.  In lazy mode only the text up to the part
+ * shown is lexed, see {@link #setLazy(boolean)}.  With a time budget, an edit
+ * that takes longer to lex is finished on the background thread as in
+ * asynchronous mode, see {@link #setTimeBudget(int)}.
  *
  * @author Ayman Al-Sairafi, Hanns Holger Rutz
  */
 public class SyntaxDocument extends PlainDocument {
   public static final String CAN_UNDO = "can-undo";
   public static final String CAN_REDO = "can-redo";
+  /**
+   * Property fired when the Tokens of a document in asynchronous mode, or of
+   * one lexed past its time budget, change.  The TokenChangeEvent that follows
+   * tells which of them did.
+   */
+  public static final String TOKENS = "tokens";
+  /**
+   * Property fired when coloring pairs by their depth is switched on or off
+   */
+  public static final String PAIR_COLORS = "pair-colors";
+  /**
+   * Property fired when regions of the document are folded or unfolded
+   */
+  public static final String FOLDS = "folds";
+  /**
+   * Property fired when the Lexers of the embedded assembly are changed
+   */
+  public static final String EMBEDDED_LEXERS = "embedded-lexers";
+
+  // size of the first window of text handed to the Lexer when re-lexing after an edit
+  private static final int    RELEX_WINDOW = 1024;
+  // size of the windows of text the background Lexer takes at a time.  The document
+  // can't be edited while one of them is lexed.
+  private static final int    ASYNC_WINDOW = 64 * 1024;
+  // edits inserting at least this much text are lexed in parallel, in chunks of
+  // about PARALLEL_CHUNK characters, unless they are lexed under a time budget
+  private static final int    PARALLEL_LENGTH = 1024 * 1024;
+  private static final int    PARALLEL_CHUNK = 256 * 1024;
+  // pair value of the { and } Tokens scopes are made of
+  private static final int    CURLY = 3;
+  // in lazy mode the text is lexed this far past the part asked for, and an edit
+  // is only re-lexed this far unless more of the text after it was lexed before
+  private static final int    LAZY_MARGIN = 64 * 1024;
+  // milliseconds lexed for on the event dispatch thread at a time in cooperative mode
+  private static final int    SLICE_TIME = 4;
+  // the most text a step lexes in cooperative mode, as its Tokens are spliced in one go
+  private static final int    SLICE_STEP = 256 * 1024;
+  // the words an asm statement starts with, and those that may come between it and the (
+  private static final String[] ASM = { "asm", "__asm", "__asm__" };
+  private static final String[] ASM_QUALIFIERS = { "volatile", "__volatile", "__volatile__", "inline", "goto" };
 
-  private Lexer               lexer;
-  private List<Token>         tokens;
+  // lexes the documents in asynchronous mode, one job at a time
+  private static final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "SyntaxDocument Lexer");
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    return t;
+  });
+
+  private final LexerPool     lexers;
+  // the Tokens and line checkpoints.  In asynchronous mode these are the ones last
+  // published by the background Lexer, which may lag behind the text.
+  private volatile Snapshot   snapshot;
+  // counts the edits, a Snapshot is up to date if it has the same version
+  private int                 version;
+  private boolean             async;
+  private boolean             lazy;
+  private boolean             cooperative;
+  // in asynchronous lazy mode, the offset Tokens were last asked for up to
+  private volatile int        wanted;
+  // held while the text is lexed further in synchronous lazy mode
+  private final Object        lazyLock = new Object();
+  private boolean             pairColors;
+  // milliseconds an edit is lexed for in synchronous mode before the background Lexer
+  // takes over, 0 for no limit
+  private int                 budget;
+  private final Folds         folds;
+  // the Tokens of the assembly in asm statements, null if it isn't lexed
+  private volatile EmbeddedTokens embedded;
+  private Future<?>           job;
   private CompoundUndoManager undo;
 
   private final PropertyChangeSupport propSupport;
   private boolean canUndoState = false;
   private boolean canRedoState = false;
 
+  /**
+   * Creates a document lexed by lexer, or an unhighlighted one if lexer is null.
+   * Scans that could run at once, like an edit and the background Lexer, take
+   * turns with it.
+   *
+   * @deprecated a document may lex on more than one thread, give it a LexerPool
+   * with {@link #SyntaxDocument(LexerPool)} instead
+   */
+  @Deprecated
   public SyntaxDocument (Lexer lexer) {
+    this((lexer == null) ? null : LexerPool.of(lexer));
+  }
+
+  /**
+   * Creates a document lexed with Lexers borrowed from the given pool, or an
+   * unhighlighted one if lexers is null
+   */
+  public SyntaxDocument (LexerPool lexers) {
     super();
     putProperty(PlainDocument.tabSizeAttribute, 4);
-    this.lexer = lexer;
+    this.lexers = lexers;
+    if (lexers != null) {
+      snapshot = new Snapshot();
+    }
     undo = new CompoundUndoManager(this);    // Listen for undo and redo events
     propSupport = new PropertyChangeSupport(this);
+    folds = new Folds(this);
+  }
+
+  /**
+   * Switches between lexing on the thread that edits the document, and lexing
+   * on a background thread.  In asynchronous mode edits return without waiting
+   * for the Lexer.  Until it catches up the Tokens of the last version it has
+   * lexed are used, shifted past the edits, and the edited text has no Tokens.
+   * A TOKENS property change is fired on the event dispatch thread whenever new
+   * Tokens are available.
+   * <p>
+   * In synchronous mode the Tokens are up to date when an edit returns, unless
+   * a time budget is set with {@link #setTimeBudget(int)}.
+   */
+  public void setAsynchronous (boolean value) {
+    writeLock();
+    try {
+      if (async != value) {
+        async = value;
+        if (!async) {
+          // catch up now
+          if (job != null) {
+            job.cancel(false);
+            job = null;
+          }
+          fireTokensChanged(parse());
+        }
+      }
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  public boolean isAsynchronous () {
+    return async;
+  }
+
+  /**
+   * Switches between lexing all of the text, and lexing it lazily.  In lazy
+   * mode the document is only lexed as far as Tokens are asked for, plus a
+   * margin, so the Tokens of the start of a large document are ready without
+   * lexing the rest.  An edit is re-lexed up to where the text after it was
+   * lexed before, but no further than the margin.
+   * <p>
+   * Asking for Tokens past the lexed text lexes it up to there on the thread
+   * asking, like an edit would.  In asynchronous mode the background Lexer lexes
+   * the text asked for first and then goes on with the rest of the document,
+   * and the text without Tokens yet is shown unhighlighted until it is done.
+   */
+  public void setLazy (boolean value) {
+    writeLock();
+    try {
+      if (lazy != value) {
+        lazy = value;
+        if (!lazy) {
+          // lex the rest now
+          fireTokensChanged(parse());
+        }
+      }
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  public boolean isLazy () {
+    return lazy;
+  }
+
+  /**
+   * Switches between lexing on a background thread in asynchronous mode, and
+   * lexing cooperatively on the event dispatch thread, for applications that
+   * would rather not have another thread.  In cooperative mode the Lexer runs for
+   * a few milliseconds at a time, and then lets the events queued meanwhile be
+   * handled before it goes on, so typing and painting never wait long for it.
+   * The Lexer starts with the edited text and goes on after it, publishing its
+   * Tokens in steps that grow with the text lexed so far.  Painting shows the
+   * text not lexed yet unhighlighted, and it is repainted as the Tokens come in.
+   * <p>
+   * This only makes a difference in asynchronous mode.
+   */
+  public void setCooperative (boolean value) {
+    cooperative = value;
+  }
+
+  public boolean isCooperative () {
+    return cooperative;
+  }
+
+  /**
+   * Sets the time in milliseconds an edit may be lexed for on the thread making
+   * it, in synchronous mode.  Usually only the lines of the edit are lexed, but
+   * an edit that changes how a long stretch of text is lexed, like opening a
+   * block comment or a string, or one inside a single very long line, may need
+   * to lex much more.  Once the budget is used up the edit is handed on to the
+   * background Lexer as in asynchronous mode, and the editing thread goes on
+   * with the text not lexed yet left unhighlighted, and without Tokens until
+   * the background Lexer is done, as the TOKENS property change then tells.
+   * 0, the default, lexes edits to the end however long it takes.  An editor
+   * that has to stay responsive on files with huge comments or strings would
+   * set a budget of about 20.
+   */
+  public void setTimeBudget (int millis) {
+    budget = millis;
+  }
+
+  public int getTimeBudget () {
+    return budget;
+  }
+
+  /**
+   * Switches coloring (), [] and {} by how deeply they are nested on or off.
+   * The depths come from the pair index kept with the Tokens, so this costs
+   * painting next to nothing.
+   */
+  public void setPairColors (boolean value) {
+    if (pairColors != value) {
+      pairColors = value;
+      propSupport.firePropertyChange(PAIR_COLORS, !value, value);
+    }
+  }
+
+  public boolean isPairColors () {
+    return pairColors;
+  }
+
+  /**
+   * Returns the folded regions of the document, which the views of the
+   * document don't show
+   */
+  public Folds getFolds () {
+    return folds;
+  }
+
+  void foldsChanged () {
+    propSupport.firePropertyChange(FOLDS, null, folds);
+  }
+
+  /**
+   * Sets the Lexers of the assembly in the template strings of asm statements,
+   * or null to leave them plain strings.  The CppLexer lexes a template as a
+   * string, and the Lexer of the assembly only lexes it once it is painted.
+   * Its Tokens are then kept, so it isn't lexed again until it is edited.
+   */
+  public void setEmbeddedLexers (LexerPool lexers) {
+    EmbeddedTokens old = embedded;
+    if ((old == null) ? lexers != null : old.getLexers() != lexers) {
+      embedded = (lexers == null) ? null : new EmbeddedTokens(lexers);
+      propSupport.firePropertyChange(EMBEDDED_LEXERS, (old == null) ? null : old.getLexers(), lexers);
+    }
+  }
+
+  public LexerPool getEmbeddedLexers () {
+    EmbeddedTokens e = embedded;
+    return (e == null) ? null : e.getLexers();
   }
 
   /*
-   * Parse the entire document and return list of tokens that do not already
-   * exist in the tokens list.  There may be overlaps, and replacements,
-   * which we will cleanup later.
+   * Parse the entire document and replace the tokens with the result
    *
-   * @return list of tokens that do not exist in the tokens field
+   * @return the change of the Tokens, null if they are lexed in the background
    */
-  private void parse () {
+  private TokenChangeEvent parse () {
+    version++;
     // if we have no lexer, then we must have no tokens...
-    if (lexer == null) {
-      tokens = null;
-      return;
+    if (lexers == null) {
+      snapshot = null;
+      return null;
     }
-    List<Token> toks = new ArrayList<>(getLength() / 10);
     long ts = System.nanoTime();
-    int len = getLength();
+    Snapshot fresh = new Snapshot();
+    fresh.version = version;
+    wanted = 0;
+    if (async) {
+      fresh.dirtyOffset = 0;
+      fresh.dirtyInserted = getLength();
+      snapshot = fresh;
+      schedule();
+      return null;
+    }
+    snapshot = fresh;
+    Relex relex = new Relex(fresh, 0, 0, getLength(), 0);
+    relex.run(getLength(), false);
+    if (log.isLoggable(Level.FINEST)) {
+      log.finest(String.format("Parsed %d in %d ms, giving %d tokens\n",
+        getLength(), (System.nanoTime() - ts) / 1000000, fresh.tokens.size()));
+    }
+    return relex.changes();
+  }
+
+  /*
+   * Re-lex the part of the document changed by an edit at offset which replaced
+   * removed characters with inserted ones.  The Lexer resumes from the checkpoint
+   * at the start of the line holding offset, which the edit can't have changed.
+   * Edits past the text lexed in lazy mode don't need to be re-lexed.
+   *
+   * @return the change of the Tokens, null if there is none yet
+   */
+  private TokenChangeEvent update (int offset, int removed, int inserted) {
+    if (lexers == null || snapshot == null) {
+      return parse();
+    }
+    version++;
+    // an edit lexed in the background in synchronous mode has to be done before this one
+    if (async || snapshot.dirtyOffset >= 0) {
+      snapshot = snapshot.withEdit(offset, removed, inserted);
+      schedule();
+      return null;
+    }
+    snapshot.version = version;
+    if (offset >= snapshot.lexed) {
+      snapshot.textLines = getLineCount();
+      return null;
+    }
+    long ts = System.nanoTime();
+    Relex relex = new Relex(snapshot, offset, removed, inserted, 0);
+    if (budget > 0) {
+      relex.setDeadline(ts + budget * 1000000L);
+    }
+    if (!relex.run(RELEX_WINDOW, true)) {
+      // out of time, the Snapshot wasn't touched
+      snapshot = snapshot.withEdit(offset, removed, inserted);
+      schedule();
+      log.finest("Re-lexing handed on to the background");
+      return null;
+    }
+    if (log.isLoggable(Level.FINEST)) {
+      log.finest(String.format("Re-lexed %d tokens in %d us\n",
+        relex.fresh.size(), (System.nanoTime() - ts) / 1000));
+    }
+    return relex.changes();
+  }
+
+  /*
+   * Hands the edits the current Snapshot hasn't been lexed for to the background
+   * Lexer, replacing the job for any earlier edits.  In asynchronous lazy mode
+   * the job then goes on lexing the rest of the document, publishing its Tokens
+   * in steps that grow with the text lexed so far.  In cooperative mode the job
+   * is run on the event dispatch thread a slice at a time.
+   */
+  private void schedule () {
+    if (job != null) {
+      job.cancel(false);
+      job = null;
+    }
+    LexJob next = new LexJob(snapshot, version, async, async && cooperative);
+    if (next.sliced) {
+      // a job left over from earlier edits stops once it sees they were outdated
+      SwingUtilities.invokeLater(next::slice);
+    } else {
+      job = worker.submit(() -> next.run(false));
+    }
+  }
+
+  /*
+   * Lexes the edits of a Snapshot in the background, and then the rest of the
+   * text if rest is set and the document is lexed in steps.  Each step is a run of
+   * Relex on a copy of the Snapshot, which is published once complete.  The job
+   * ends when a step is abandoned because the document was edited again.
+   */
+  private class LexJob {
+    final boolean         sliced;       // whether it runs on the event dispatch thread
+    private final int     version;
+    private final boolean rest;
+    private Snapshot      from;
+    private int           offset;
+    private int           removed;
+    private int           inserted;
+    private int           bound;
+    private Snapshot      target;
+    private Relex         relex;        // the step under way, if one is
+
+    LexJob (Snapshot base, int version, boolean rest, boolean sliced) {
+      this.version = version;
+      this.rest = rest;
+      this.sliced = sliced;
+      from = base;
+      offset = base.dirtyOffset;
+      removed = base.dirtyRemoved;
+      inserted = base.dirtyInserted;
+    }
+
+    /*
+     * Lexes until the job is done, or until a window of text ends past the end of
+     * the slice if timed
+     *
+     * @return true if there is more to do
+     */
+    boolean run (boolean timed) {
+      try {
+        long deadline = System.nanoTime() + SLICE_TIME * 1000000L;
+        while (true) {
+          if (relex == null) {
+            if (offset >= from.lexed) {
+              // the edit is past the lexed text, which stays as it is
+              offset = from.lexed;
+              removed = 0;
+              inserted = 0;
+            }
+            target = new Snapshot(from);
+            target.version = version;
+            relex = new Relex(target, offset, removed, inserted, bound);
+            relex.stepped = sliced;
+          }
+          if (timed) {
+            relex.setDeadline(deadline);
+          }
+          if (!relex.run(ASYNC_WINDOW, false)) {
+            return relex.late;
+          }
+          relex = null;
+          if (target.lexed == Integer.MAX_VALUE || !rest) {
+            return false;
+          }
+          from = target;
+          offset = target.lexed;
+          removed = 0;
+          inserted = 0;
+          long step = Math.max(offset, LAZY_MARGIN);
+          bound = (int) Math.min(Integer.MAX_VALUE, offset + (sliced ? Math.min(step, SLICE_STEP) : step));
+        }
+      } catch (RuntimeException ex) {
+        log.log(Level.SEVERE, null, ex);
+        return false;
+      }
+    }
+
+    /*
+     * Lexes for a slice of time, and has the next slice run after the events
+     * queued meanwhile
+     */
+    void slice () {
+      if (run(true)) {
+        SwingUtilities.invokeLater(this::slice);
+      }
+    }
+  }
+
+  /*
+   * In lazy mode, makes sure the text is lexed far enough to have all the Tokens
+   * starting before pos.  In asynchronous mode the background Lexer is asked to
+   * lex it next instead.
+   */
+  private void lexTo (int pos) {
+    Snapshot s = snapshot;
+    // in cooperative mode the text is lexed in steps as if lazy
+    if (!(lazy || (async && cooperative)) || s == null || s.tokensEnd() >= s.toTokens(pos)) {
+      return;
+    }
+    if (async || s.dirtyOffset >= 0) {
+      wanted = pos;
+      return;
+    }
+    // other readers may be using the Snapshot, so it is lexed further on a copy
+    // which is published once complete.  Only one thread does so at a time, and
+    // the read lock is held throughout so edits can't come in between.
+    readLock();
     try {
-      Segment seg = new Segment();
-      getText(0, getLength(), seg);
-      lexer.parse(seg, 0, toks);
-    } catch (BadLocationException ex) {
-      log.log(Level.SEVERE, null, ex);
+      synchronized (lazyLock) {
+        s = snapshot;
+        if (s == null || s.dirtyOffset >= 0 || s.tokensEnd() >= s.toTokens(pos)) {
+          return;
+        }
+        Snapshot target = new Snapshot(s);
+        target.version = s.version;
+        Relex relex = new Relex(target, s.lexed, 0, 0, pos);
+        relex.quiet = true;
+        relex.run(LAZY_MARGIN, true);
+      }
     } finally {
-      if (log.isLoggable(Level.FINEST)) {
-        log.finest(String.format("Parsed %d in %d ms, giving %d tokens\n",
-          len, (System.nanoTime() - ts) / 1000000, toks.size()));
+      readUnlock();
+    }
+  }
+
+  /*
+   * The Tokens and line checkpoints of the document as it was at some version.
+   * A Snapshot may also stand for a later version of the document: the text
+   * edited since is then described by a single edit, which covers all of them.
+   * Tokens overlapping it are left out and the ones after it shifted.
+   * <p>
+   * In lazy mode only the text up to a line start is lexed.  The last line
+   * checkpoint is the one there, and the Tokens end before the match pending at it.
+   * <p>
+   * Once a Snapshot is published in asynchronous mode it isn't modified any more.
+   */
+  private static final class Snapshot {
+    int         version;
+    TokenTree   tokens;
+    // Lexer checkpoint at the start of each line.  The start and marked offsets are
+    // kept as distances back from the line start, so they stay valid when the line
+    // is shifted by an edit before it.
+    int[]       lineState;
+    int[]       lineBack;   // line start - LexerState.start
+    int[]       lineMark;   // line start - LexerState.marked
+    int         lineCount;
+    // index of the first Token starting at or after each line start, so painting
+    // a line needn't search for its Tokens
+    int[]       lineToken;
+    // offset of the line start up to which the text is lexed, Integer.MAX_VALUE if all of it is
+    int         lexed = Integer.MAX_VALUE;
+    // number of lines of the text that was lexed
+    int         textLines = 1;
+    // the edit not lexed yet replaced dirtyRemoved characters at dirtyOffset with
+    // dirtyInserted ones.  dirtyOffset is -1 if there is none.
+    int         dirtyOffset = -1;
+    int         dirtyRemoved;
+    int         dirtyInserted;
+
+    Snapshot () {
+      tokens = new TokenTree();
+      // the first line always starts on a token boundary
+      lineCount = 1;
+      lineState = new int[1];
+      lineBack = new int[1];
+      lineMark = new int[1];
+      lineToken = new int[1];
+    }
+
+    /*
+     * Copies the Tokens and checkpoints of other, for lexing its edit
+     */
+    Snapshot (Snapshot other) {
+      tokens = new TokenTree(other.tokens);
+      lineState = Arrays.copyOf(other.lineState, other.lineCount);
+      lineBack = Arrays.copyOf(other.lineBack, other.lineCount);
+      lineMark = Arrays.copyOf(other.lineMark, other.lineCount);
+      lineToken = Arrays.copyOf(other.lineToken, other.lineCount);
+      lineCount = other.lineCount;
+      lexed = other.lexed;
+      textLines = other.textLines;
+    }
+
+    /*
+     * Returns a Snapshot sharing these Tokens, with the edit made at offset of
+     * the text it stands for added to its own
+     */
+    Snapshot withEdit (int offset, int removed, int inserted) {
+      Snapshot s = new Snapshot();
+      s.version = version;
+      s.tokens = tokens;
+      s.lineState = lineState;
+      s.lineBack = lineBack;
+      s.lineMark = lineMark;
+      s.lineToken = lineToken;
+      s.lineCount = lineCount;
+      s.lexed = lexed;
+      s.textLines = textLines;
+      if (dirtyOffset < 0) {
+        s.dirtyOffset = offset;
+        s.dirtyRemoved = removed;
+        s.dirtyInserted = inserted;
+      } else {
+        int start = Math.min(dirtyOffset, offset);
+        int end = Math.max(dirtyOffset + dirtyInserted, offset + removed);
+        s.dirtyOffset = start;
+        s.dirtyRemoved = end - dirtyInserted + dirtyRemoved - start;
+        s.dirtyInserted = end - removed + inserted - start;
+      }
+      return s;
+    }
+
+    /*
+     * Maps an offset in the text to the Tokens, offsets in the edit map to its end
+     */
+    int toTokens (int pos) {
+      if (dirtyOffset < 0 || pos < dirtyOffset) {
+        return pos;
+      }
+      return Math.max(pos - dirtyInserted, dirtyOffset) + dirtyRemoved;
+    }
+
+    /*
+     * Returns whether the Token at index overlaps the edit, and has no place in
+     * the text
+     */
+    boolean isDirty (int index) {
+      return dirtyOffset >= 0 && tokens.end(index) > dirtyOffset && tokens.start(index) < dirtyOffset + dirtyRemoved;
+    }
+
+    /*
+     * Returns the start of the Token at index, moved to where it is in the text
+     */
+    int start (int index) {
+      int start = tokens.start(index);
+      return (dirtyOffset < 0 || start < dirtyOffset) ? start : start + dirtyInserted - dirtyRemoved;
+    }
+
+    /*
+     * Returns the Token at index, moved to where it is in the text, or null if
+     * it overlaps the edit
+     */
+    Token get (int index) {
+      if (isDirty(index)) {
+        return null;
+      }
+      return new Token(tokens.type(index), start(index), tokens.length(index), tokens.pairValue(index));
+    }
+
+    /*
+     * Returns the offset up to which there are Tokens, the start of the match
+     * pending where the text was lexed up to
+     */
+    int tokensEnd () {
+      return (lexed == Integer.MAX_VALUE) ? lexed : lexed - lineBack[lineCount - 1];
+    }
+
+    /*
+     * Returns the index of the Token closing the pair of the kind opened before
+     * index from, or -1 if there is none.  The Tokens overlapping the edit are
+     * left out, and depth is left at the number of pairs still open at the end.
+     */
+    int pairForward (int from, int kind, int[] depth) {
+      int dirty = dirtyFrom();
+      if (from < dirty) {
+        int pair = tokens.pairForward(from, dirty, kind, depth);
+        if (pair >= 0 || dirty == tokens.size()) {
+          return pair;
+        }
+      }
+      return tokens.pairForward(Math.max(from, dirtyTo()), tokens.size(), kind, depth);
+    }
+
+    /*
+     * Returns the index of the Token opening the pair of the kind closed at
+     * index to, or -1 if there is none.  The Tokens overlapping the edit are
+     * left out.
+     */
+    int pairBackward (int to, int kind, int[] depth) {
+      int clean = dirtyTo();
+      if (to > clean) {
+        int pair = tokens.pairBackward(clean, to, kind, depth);
+        if (pair >= 0 || clean == 0) {
+          return pair;
+        }
+      }
+      return tokens.pairBackward(0, Math.min(to, dirtyFrom()), kind, depth);
+    }
+
+    /*
+     * Returns the number of pairs of any kind left open before the Token at
+     * index, not counting the Tokens overlapping the edit
+     */
+    int pairDepth (int index) {
+      return openPairs(index, TokenTree.ANY_PAIR);
+    }
+
+    /*
+     * Returns the number of pairs of the kind opened before the Token at index
+     * and not closed before it, not counting the Tokens overlapping the edit.
+     * Closing Tokens that find no pair open are left out, so they don't lower the
+     * count for the Tokens after them.
+     */
+    int openPairs (int index, int kind) {
+      int[] summary = new int[2];
+      int dirty = dirtyFrom();
+      tokens.pairSummary(0, Math.min(index, dirty), kind, summary);
+      if (index > dirty) {
+        tokens.pairSummary(Math.min(index, dirtyTo()), index, kind, summary);
       }
-      tokens = toks;
+      return summary[0] - summary[1];
+    }
+
+    /*
+     * Returns the index of the first Token overlapping the edit, or the number
+     * of Tokens if there is no edit
+     */
+    private int dirtyFrom () {
+      if (dirtyOffset < 0) {
+        return tokens.size();
+      }
+      int ndx = tokens.indexOf(dirtyOffset);
+      return (ndx > 0 && tokens.end(ndx - 1) > dirtyOffset) ? ndx - 1 : ndx;
+    }
+
+    /*
+     * Returns the index of the first Token after the edit, or the number of
+     * Tokens if there is no edit
+     */
+    private int dirtyTo () {
+      return (dirtyOffset < 0) ? tokens.size() : tokens.indexOf(dirtyOffset + dirtyRemoved);
+    }
+  }
+
+  /*
+   * Returns the first line start at or after pos, or Integer.MAX_VALUE if there is none
+   */
+  private int lineStartFrom (int pos) {
+    Element root = getDefaultRootElement();
+    int line = root.getElementIndex(pos);
+    int start = root.getElement(line).getStartOffset();
+    if (start >= pos) {
+      return start;
+    }
+    return (line + 1 < root.getElementCount()) ? root.getElement(line + 1).getStartOffset() : Integer.MAX_VALUE;
+  }
+
+  /*
+   * A chunk of text lexed in parallel with others, from the position of begin up
+   * to and including the first line start at or after to.  The Tokens found there
+   * and the checkpoint of each line are collected, the one where the Lexer stopped
+   * is also kept as exit.
+   */
+  private static final class Chunk implements Lexer.CheckpointListener {
+    final int               from;
+    final int               to;
+    final LexerState        begin;
+    final LexerState        exit = new LexerState();
+    final TokenStore        tokens = new TokenStore(0);
+    int[]                   lines = new int[64];   // position, state, start and marked of each line
+    int                     lineCount;
+
+    Chunk (LexerState begin, int to) {
+      this.begin = begin;
+      this.from = begin.position;
+      this.to = to;
+    }
+
+    void lex (LexerPool lexers, Segment seg, int ofst) {
+      Lexer lexer = lexers.acquire();
+      try {
+        lexer.start(seg, ofst, begin, true, this);
+        for (TokenType type = lexer.next(); type != null; type = lexer.next()) {
+          tokens.add(type, lexer.getTokenStart(), lexer.getTokenLength(), lexer.getPairValue());
+        }
+        lexer.getState(exit);
+      } finally {
+        lexers.release(lexer);
+      }
+    }
+
+    @Override
+    public boolean checkpoint (LexerState state) {
+      if (4 * lineCount == lines.length) {
+        lines = Arrays.copyOf(lines, lines.length * 2);
+      }
+      int ii = 4 * lineCount++;
+      lines[ii] = state.position;
+      lines[ii + 1] = state.state;
+      lines[ii + 2] = state.start;
+      lines[ii + 3] = state.marked;
+      return state.position < to;
+    }
+  }
+
+  /*
+   * Re-lexes the document after an edit, collecting the new tokens and line
+   * checkpoints until the Lexer reaches a line start past the edit in the same
+   * state it was in before the edit.  From there on it would produce the old
+   * tokens again, so it is stopped and the old tokens and checkpoints are kept,
+   * with offsets after the edit shifted.
+   * <p>
+   * In lazy mode the Lexer is also stopped at the first line start at or after
+   * limit where no match pending from before bound is left, which leaves the rest
+   * of the text unlexed.
+   */
+  private class Relex implements Lexer.CheckpointListener {
+    private final Snapshot    target;       // the Tokens being updated
+    private final int         offset;
+    private final int         removed;
+    private final int         delta;
+    private int               bound;        // offset the Tokens must reach in lazy mode
+    private int               limit = Integer.MAX_VALUE;
+    private boolean           timed;
+    private long              deadline;     // System.nanoTime() no window is started after
+    boolean                   late;         // whether the last run stopped at the deadline
+    boolean                   stepped;      // whether to stop at limit as in lazy mode
+    boolean                   quiet;        // whether it is published without firing events
+    private LexerState        state;        // where the Lexer goes on, null before the first window
+    private int               first;        // index of the first old Token replaced
+    private boolean           truncated;    // whether the Lexer was stopped at limit
+    private int               line;         // line the Lexer resumes at
+    private int               resume;       // start of the match pending there
+    private int               lineDelta;
+    private final TokenStore  fresh = new TokenStore(0);
+    private int[]             freshState = new int[16];
+    private int[]             freshBack = new int[16];
+    private int[]             freshMark = new int[16];
+    private int               freshLines;
+    private int               syncLine = -1; // old line at which the Lexer got back in step
+    private int               syncStart;     // old start of the match pending there
+    // the text whose Tokens the splice changed, and the first and last changed fresh Token
+    private int               changeStart;
+    private int               changeEnd;
+    private Token             changeFirst;
+    private Token             changeLast;
+
+    Relex (Snapshot target, int offset, int removed, int inserted, int bound) {
+      this.target = target;
+      this.offset = offset;
+      this.removed = removed;
+      this.delta = inserted - removed;
+      this.bound = bound;
+    }
+
+    /*
+     * Runs the Lexer, feeding it windows of text that start at the pending match,
+     * and doubling in size each time the Lexer runs out of text if grow is set.
+     * The document is read locked while each window is lexed, and the run is
+     * abandoned if the document was edited past the target's version in between.
+     * If target isn't the document's Snapshot, it is published once complete.
+     * <p>
+     * With a deadline the run also stops once a window ends past it.  Running
+     * it again then goes on where it stopped, unless the document was edited.
+     *
+     * @return false if the run was abandoned or stopped at the deadline
+     */
+    boolean run (int window, boolean grow) {
+      late = false;
+      Segment seg = new Segment();
+      while (true) {
+        readLock();
+        // borrowed inside the lock, as an edit holding the document may be waiting for
+        // the only Lexer of a pool
+        Lexer lexer = lexers.acquire();
+        try {
+          if (version != target.version) {
+            return false;
+          }
+          if (state == null) {
+            lineDelta = getLineCount() - target.textLines;
+            line = getLineNumberAt(offset);
+            int lineStart = getDefaultRootElement().getElement(line).getStartOffset();
+            state = new LexerState();
+            state.set(target.lineState[line], lineStart, lineStart - target.lineBack[line],
+                      lineStart - target.lineMark[line]);
+            resume = state.start;
+            first = target.tokens.indexOf(resume);
+            int editEnd = offset + removed + delta;
+            // where the text was lexed up to, which is as far as the Lexer can get back in step
+            int frontier = (target.lexed == Integer.MAX_VALUE) ? Integer.MAX_VALUE :
+              (target.lexed >= offset + removed) ? target.lexed + delta : editEnd;
+            if (lazy || stepped) {
+              // a step in cooperative mode only goes so far towards the text asked for
+              bound = Math.max(bound, stepped ? (int) Math.min(wanted, (long) offset + SLICE_STEP) : wanted);
+              limit = (int) Math.max(Math.min(frontier, (long) offset + LAZY_MARGIN), (long) bound + LAZY_MARGIN);
+            }
+            int parallel = (frontier > editEnd) ? Math.min(editEnd, limit) : limit;
+            // in cooperative mode nothing is lexed on other threads, nor with a deadline, as
+            // the chunks can't be stopped at it; the text is left to the background Lexer then.
+            // A pool of a single Lexer has none to spare for the chunks.
+            if (parallel - state.position >= PARALLEL_LENGTH && ForkJoinPool.getCommonPoolParallelism() > 1 &&
+                !stepped && !timed && !lexers.isSingle()) {
+              lexParallel(lexer, state, parallel);
+            }
+          }
+          boolean done = syncLine >= 0 || truncated;
+          if (!done) {
+            int len = getLength();
+            int end = (int) Math.min(len, (long) state.position + window);
+            getText(state.start, end - state.start, seg);
+            lexer.start(seg, state.start, state, end == len, this);
+            for (TokenType type = lexer.next(); type != null; type = lexer.next()) {
+              fresh.add(type, lexer.getTokenStart(), lexer.getTokenLength(), lexer.getPairValue());
+            }
+            lexer.getState(state);
+            done = syncLine >= 0 || truncated || end == len;
+          }
+          if (done) {
+            splice(first);
+            if (target != snapshot) {
+              snapshot = target;
+              if (quiet) {
+                // lexing on in lazy mode only adds Tokens where there were none
+                return true;
+              }
+              TokenChangeEvent changes = changes();
+              SwingUtilities.invokeLater(() -> {
+                propSupport.firePropertyChange(TOKENS, null, target.version);
+                // edited meanwhile, the range no longer tells where the change is
+                fireTokensChanged((target.version == version) ? changes :
+                  new TokenChangeEvent(SyntaxDocument.this, null, null, 0, getLength()));
+              });
+            }
+            return true;
+          }
+        } catch (BadLocationException ex) {
+          log.log(Level.SEVERE, null, ex);
+          return false;
+        } finally {
+          lexers.release(lexer);
+          readUnlock();
+        }
+        if (timed && System.nanoTime() - deadline > 0) {
+          late = true;
+          return false;
+        }
+        if (grow) {
+          window *= 2;
+        }
+      }
+    }
+
+    void setDeadline (long nanoTime) {
+      timed = true;
+      deadline = nanoTime;
+    }
+
+    /*
+     * Lexes the text from state up to the first line start at or after bound in
+     * chunks on the common ForkJoinPool, feeding their Tokens and checkpoints into
+     * this run in order as if they had been lexed in one go, and moves state to
+     * the end.  All chunks but the first are lexed as if they started on a Token
+     * boundary.  Where that turns out to be wrong, the text after the chunk before
+     * is lexed again until the Lexer arrives at a line start in the same state as
+     * the chunks did, whose Tokens are then right from there on.
+     */
+    private void lexParallel (Lexer lexer, LexerState state, int bound) throws BadLocationException {
+      int ofst = state.start;
+      Segment seg = new Segment();
+      getText(ofst, getLength() - ofst, seg);
+      int last = lineStartFrom(bound);
+      List<Chunk> chunks = new ArrayList<>();
+      LexerState begin = new LexerState();
+      begin.set(state.state, state.position, state.start, state.marked);
+      while (true) {
+        int to = Math.min(lineStartFrom(begin.position + PARALLEL_CHUNK), last);
+        chunks.add(new Chunk(begin, to));
+        if (to >= last) {
+          break;
+        }
+        begin = new LexerState();
+        begin.set(0, to, to, to);
+      }
+      chunks.parallelStream().forEach(chunk -> chunk.lex(lexers, seg, ofst));
+
+      Chunk chunk = chunks.get(0);
+      feed(chunk, 0, 0);
+      LexerState exit = chunk.exit;
+      int next = 1;
+      while (syncLine < 0 && !truncated && next < chunks.size()) {
+        chunk = chunks.get(next);
+        if (exit.state == 0 && exit.position == chunk.from && exit.start == chunk.from && exit.marked == chunk.from) {
+          // guessed right
+          feed(chunk, 0, 0);
+          exit = chunk.exit;
+          next++;
+          continue;
+        }
+        Stitch stitch = new Stitch(chunks, next, last);
+        lexer.start(seg, ofst, exit, true, stitch);
+        for (TokenType type = lexer.next(); type != null; type = lexer.next()) {
+          fresh.add(type, lexer.getTokenStart(), lexer.getTokenLength(), lexer.getPairValue());
+        }
+        if (!stitch.matched || syncLine >= 0 || truncated) {
+          // lexed all the rest again
+          exit = new LexerState();
+          lexer.getState(exit);
+          break;
+        }
+        chunk = chunks.get(stitch.chunk);
+        int ii = 4 * stitch.line;
+        feed(chunk, chunk.tokens.indexOf(chunk.lines[ii + 2]), stitch.line + 1);
+        exit = chunk.exit;
+        next = stitch.chunk + 1;
+      }
+      state.set(exit.state, exit.position, exit.start, exit.marked);
+    }
+
+    /*
+     * Takes over the Tokens of chunk from index tokenFrom and its checkpoints from
+     * line lineFrom on.  The chunks only reach up to the edit or limit, so only the
+     * one at the end of the last chunk can be where the Lexer gets back in step or
+     * is stopped.
+     */
+    private void feed (Chunk chunk, int tokenFrom, int lineFrom) {
+      fresh.addAll(chunk.tokens, tokenFrom, chunk.tokens.size());
+      LexerState state = new LexerState();
+      for (int ii = 4 * lineFrom; ii < 4 * chunk.lineCount && syncLine < 0 && !truncated; ii += 4) {
+        state.set(chunk.lines[ii + 1], chunk.lines[ii], chunk.lines[ii + 2], chunk.lines[ii + 3]);
+        checkpoint(state);
+      }
+    }
+
+    /*
+     * Follows the Lexer as it lexes the text after a chunk that didn't start on a
+     * Token boundary after all, and stops it at the first line start where it is
+     * in the state some chunk found there: from that chunk and line on, the chunk's
+     * Tokens and checkpoints are the right ones.  Otherwise it stops once it has
+     * lexed all the chunks.
+     */
+    private class Stitch implements Lexer.CheckpointListener {
+      private final List<Chunk> chunks;
+      private final int         last;
+      int                       chunk;
+      int                       line;
+      boolean                   matched;
+
+      Stitch (List<Chunk> chunks, int chunk, int last) {
+        this.chunks = chunks;
+        this.chunk = chunk;
+        this.last = last;
+      }
+
+      @Override
+      public boolean checkpoint (LexerState state) {
+        if (!Relex.this.checkpoint(state)) {
+          return false;
+        }
+        // find where the chunks have the same line
+        while (chunk < chunks.size()) {
+          Chunk c = chunks.get(chunk);
+          while (line < c.lineCount && c.lines[4 * line] < state.position) {
+            line++;
+          }
+          if (line < c.lineCount) {
+            break;
+          }
+          chunk++;
+          line = 0;
+        }
+        if (chunk < chunks.size()) {
+          int[] lines = chunks.get(chunk).lines;
+          int ii = 4 * line;
+          if (lines[ii] == state.position && lines[ii + 1] == state.state && lines[ii + 2] == state.start &&
+              lines[ii + 3] == state.marked) {
+            matched = true;
+            return false;
+          }
+        }
+        return state.position < last;
+      }
+    }
+
+    @Override
+    public boolean checkpoint (LexerState state) {
+      if (freshLines == freshState.length) {
+        freshState = Arrays.copyOf(freshState, freshLines * 2);
+        freshBack = Arrays.copyOf(freshBack, freshLines * 2);
+        freshMark = Arrays.copyOf(freshMark, freshLines * 2);
+      }
+      freshState[freshLines] = state.state;
+      freshBack[freshLines] = state.position - state.start;
+      freshMark[freshLines] = state.position - state.marked;
+      freshLines++;
+      // the old checkpoint of the same line only predicts what follows if the
+      // Lexer can't back up into the edited text any more.  The line must also
+      // start after the edit, the newline ending the line before included, or
+      // the old line with this index may start somewhere else.
+      int editEnd = offset + removed + delta;
+      int old = line + freshLines - lineDelta;
+      if (state.position > editEnd && old > line && old < target.lineCount && target.lineState[old] == state.state) {
+        int oldStart = state.position - delta - target.lineBack[old];
+        if (shift(oldStart) == state.start && shift(state.position - delta - target.lineMark[old]) == state.marked &&
+            (state.marked >= editEnd || endsPast(oldStart, state.position - delta))) {
+          syncLine = old;
+          syncStart = oldStart;
+          return false;
+        }
+      }
+      if (state.position >= limit && state.start >= bound) {
+        truncated = true;
+        return false;
+      }
+      return true;
+    }
+
+    /*
+     * Returns whether the old Tokens have one starting at start and ending past
+     * pos.  In the middle of a long Token, like a block comment or a string, the
+     * Lexer may back up to before the edit, but if this is how the match pending
+     * at the old checkpoint at pos ended, it didn't, and won't from the same
+     * state.  So an edit inside a long Token is only lexed up to the next line.
+     */
+    private boolean endsPast (int start, int pos) {
+      TokenTree tokens = target.tokens;
+      int ndx = tokens.indexOf(start);
+      return ndx < tokens.size() && tokens.start(ndx) == start && tokens.end(ndx) > pos;
+    }
+
+    /*
+     * Maps an offset from before the edit to after it, or -1 if the edit removed it
+     */
+    private int shift (int pos) {
+      if (pos < offset) {
+        return pos;
+      }
+      return (pos >= offset + removed) ? pos + delta : -1;
+    }
+
+    /*
+     * Replaces the old tokens from index first up to the point where the Lexer got
+     * back in step with the fresh ones, and the old line checkpoints after line
+     * with the fresh ones
+     */
+    private void splice (int first) {
+      TokenTree tokens = target.tokens;
+      int tail = (syncLine >= 0) ? tokens.indexOf(syncStart) : tokens.size();
+      findChanges(first, tail);
+      int tokenDelta = fresh.size() - (tail - first);
+      tokens.replace(first, tail, fresh);
+      int kept = first + fresh.size();
+      if (kept < tokens.size() && tokens.start(kept) < offset) {
+        // the match pending across the edit, the old tokens after it start past the edit
+        tokens.setLength(kept, tokens.length(kept) + delta);
+        kept++;
+      }
+      tokens.shift(kept, delta);
+      // checkpoints of lines up to and including line stay, then come the fresh ones,
+      // then the old ones after the line where the Lexer got back in step
+      int keep = (syncLine >= 0) ? target.lineCount - syncLine - 1 : 0;
+      int size = line + 1 + freshLines + keep;
+      target.lineState = spliceLines(target.lineState, freshState, size, keep);
+      target.lineBack = spliceLines(target.lineBack, freshBack, size, keep);
+      target.lineMark = spliceLines(target.lineMark, freshMark, size, keep);
+      Element root = getDefaultRootElement();
+      spliceLineTokens(root, first, size, keep, tokenDelta);
+      target.lineCount = size;
+      target.textLines = getLineCount();
+      target.dirtyOffset = -1;
+      if (truncated) {
+        target.lexed = root.getElement(size - 1).getStartOffset();
+      } else if (syncLine < 0) {
+        target.lexed = Integer.MAX_VALUE;
+      } else if (target.lexed != Integer.MAX_VALUE) {
+        target.lexed += delta;
+      }
+      // a match pending across the edit is now that much further back from the line start
+      for (int ii = size - keep; ii < size; ii++) {
+        int lineStart = root.getElement(ii).getStartOffset();
+        if (lineStart - delta - target.lineBack[ii] >= offset) {
+          break;
+        }
+        target.lineBack[ii] += delta;
+        if (lineStart - delta - target.lineMark[ii] < offset) {
+          target.lineMark[ii] += delta;
+        }
+      }
+    }
+
+    /*
+     * Finds the fresh Tokens that differ from the old ones from index first up to
+     * tail they replace, leaving out those that came out the same at either end.
+     * The text changed is that of the differing Tokens, old and fresh, and of the
+     * edit.  With pair colors a changed pair Token recolors the pairs after it, so
+     * the change then runs to the end of the text.
+     */
+    private void findChanges (int first, int tail) {
+      TokenTree tokens = target.tokens;
+      int size = fresh.size();
+      int head = 0;
+      while (head < size && first + head < tail && isSame(first + head, head)) {
+        head++;
+      }
+      int back = 0;
+      while (back < size - head && tail - back > first + head && isSame(tail - 1 - back, size - 1 - back)) {
+        back++;
+      }
+      changeStart = offset;
+      changeEnd = offset + removed + delta;
+      boolean pairs = false;
+      if (head < size - back) {
+        changeFirst = fresh.get(head);
+        changeLast = fresh.get(size - 1 - back);
+        changeStart = Math.min(changeStart, changeFirst.start);
+        changeEnd = Math.max(changeEnd, changeLast.end());
+        for (int ii = head; ii < size - back && pairColors && !pairs; ii++) {
+          pairs = fresh.pairValue(ii) != 0;
+        }
+      }
+      if (first + head < tail - back) {
+        changeStart = Math.min(changeStart, moved(tokens.start(first + head)));
+        changeEnd = Math.max(changeEnd, moved(tokens.end(tail - 1 - back)));
+        for (int ii = first + head; ii < tail - back && pairColors && !pairs; ii++) {
+          pairs = tokens.pairValue(ii) != 0;
+        }
+      }
+      if (pairs) {
+        changeEnd = getLength();
+      }
+    }
+
+    /*
+     * Returns whether the old Token at index is the fresh one at freshIndex,
+     * moved by the edit.  One reaching into the edit covers other text now.
+     */
+    private boolean isSame (int index, int freshIndex) {
+      TokenTree tokens = target.tokens;
+      int start = tokens.start(index);
+      return (tokens.end(index) <= offset || start >= offset + removed) && moved(start) == fresh.start(freshIndex) &&
+             tokens.length(index) == fresh.length(freshIndex) && tokens.type(index) == fresh.type(freshIndex) &&
+             tokens.pairValue(index) == fresh.pairValue(freshIndex);
+    }
+
+    /*
+     * Maps an offset from before the edit to after it, offsets in the removed
+     * text to the start of the edit
+     */
+    private int moved (int pos) {
+      return (pos < offset + removed) ? Math.min(pos, offset) : pos + delta;
+    }
+
+    /*
+     * Returns the change of the Tokens made by the last splice
+     */
+    TokenChangeEvent changes () {
+      return new TokenChangeEvent(SyntaxDocument.this, changeFirst, changeLast, changeStart, changeEnd);
+    }
+
+    /*
+     * Updates the index of the first Token of each line to the spliced Tokens.
+     * The lines after the start of the match pending at line, up to the last
+     * fresh one, are indexed anew: the Lexer may have backed up into them.  The
+     * old lines kept have their first Token moved by the number of Tokens added.
+     */
+    private void spliceLineTokens (Element root, int first, int size, int keep, int tokenDelta) {
+      TokenTree tokens = target.tokens;
+      int[] lines = spliceLines(target.lineToken, new int[freshLines], size, keep);
+      for (int ii = size - keep; ii < size && tokenDelta != 0; ii++) {
+        lines[ii] += tokenDelta;
+      }
+      int last = line + freshLines;
+      int ndx = first;
+      for (int ii = root.getElementIndex(resume) + 1; ii <= last; ) {
+        int lineStart = root.getElement(ii).getStartOffset();
+        int start = Integer.MAX_VALUE;
+        // the fresh Tokens are read from the Lexer's output, which is quicker
+        while (ndx < tokens.size() &&
+               (start = (ndx < first + fresh.size()) ? fresh.start(ndx - first) : tokens.start(ndx)) < lineStart) {
+          ndx++;
+          start = Integer.MAX_VALUE;
+        }
+        // the lines up to the one this Token starts on all start with it
+        int upto = (start == Integer.MAX_VALUE) ? last : Math.min(last, root.getElementIndex(start));
+        Arrays.fill(lines, ii, upto + 1, ndx);
+        ii = upto + 1;
+      }
+      target.lineToken = lines;
+    }
+
+    private int[] spliceLines (int[] old, int[] fresh, int size, int keep) {
+      int[] lines = old;
+      if (size > old.length) {
+        lines = new int[Math.max(size, old.length * 2)];
+        System.arraycopy(old, 0, lines, 0, line + 1);
+      }
+      if (lines != old || size != target.lineCount) {
+        System.arraycopy(old, target.lineCount - keep, lines, size - keep, keep);
+      }
+      System.arraycopy(fresh, 0, lines, line + 1, freshLines);
+      return lines;
     }
   }
 
   @Override
   protected void fireChangedUpdate (DocumentEvent e) {
-    parse();
+    TokenChangeEvent changes = parse();
     super.fireChangedUpdate(e);
+    fireTokensChanged(changes);
   }
 
   @Override
   protected void fireInsertUpdate (DocumentEvent e) {
-    parse();
+    TokenChangeEvent changes = update(e.getOffset(), 0, e.getLength());
+    folds.update(e);
     super.fireInsertUpdate(e);
+    fireTokensChanged(changes);
   }
 
   @Override
   protected void fireRemoveUpdate (DocumentEvent e) {
-    parse();
+    TokenChangeEvent changes = update(e.getOffset(), e.getLength(), 0);
+    folds.update(e);
     super.fireRemoveUpdate(e);
+    fireTokensChanged(changes);
   }
 
   /**
-   * This class is used to iterate over tokens between two positions
+   * Adds a listener told which Tokens changed after each (re)lex
    */
-  class TokenIterator implements ListIterator<Token> {
+  public void addTokenChangeListener (TokenChangeListener listener) {
+    listenerList.add(TokenChangeListener.class, listener);
+  }
 
-    int start;
-    int end;
-    int ndx = 0;
+  public void removeTokenChangeListener (TokenChangeListener listener) {
+    listenerList.remove(TokenChangeListener.class, listener);
+  }
 
-    @SuppressWarnings("unchecked")
-    private TokenIterator (int start, int end) {
-      this.start = start;
-      this.end = end;
-      if (tokens != null && !tokens.isEmpty()) {
-        Token token = new Token(TokenType.COMMENT, start, end - start);
-        ndx = Collections.binarySearch((List) tokens, token);
-        // we will probably not find the exact token...
-        if (ndx < 0) {
-          // so, start from one before the token where we should be...
-          // -1 to get the location, and another -1 to go back..
-          ndx = Math.max(-ndx - 1 - 1, 0);
-          Token t = tokens.get(ndx);
-          // if the prev token does not overlap, then advance one
-          if (t.end() <= start) {
-            ndx++;
-          }
+  /**
+   * Tells the listeners about changes, unless it is null
+   */
+  protected void fireTokensChanged (TokenChangeEvent changes) {
+    if (changes == null) {
+      return;
+    }
+    Object[] listeners = listenerList.getListenerList();
+    for (int i = listeners.length - 2; i >= 0; i -= 2) {
+      if (listeners[i] == TokenChangeListener.class) {
+        ((TokenChangeListener) listeners[i + 1]).tokensChanged(changes);
+      }
+    }
+  }
 
+  /**
+   * Steps through the Tokens between two positions in place, without creating
+   * Token objects.  The cursor starts before the first Token, and each call to
+   * {@link #next()} moves it on to the next one, whose type and position can then
+   * be read.
+   */
+  public static final class TokenCursor {
+    private final Snapshot snapshot;
+    private final int      end;
+    private int            ndx;
+    private TokenType      type;
+    private int            start;
+    private int            length;
+    private byte           pairValue;
+    // pairs open before the current Token, only looked up once asked for
+    private int            open = Integer.MIN_VALUE;
+
+    private TokenCursor (Snapshot snapshot, int start, int end) {
+      this(snapshot, (snapshot == null) ? 0 : snapshot.tokens.indexOf(snapshot.toTokens(start)), start, end);
+    }
+
+    /*
+     * Starts at index, that of the first Token starting at or after start
+     */
+    private TokenCursor (Snapshot snapshot, int index, int start, int end) {
+      this.snapshot = snapshot;
+      this.end = end;
+      ndx = index;
+      if (snapshot != null) {
+        // start from the token before if it overlaps
+        if (ndx > 0 && snapshot.tokens.end(ndx - 1) > snapshot.toTokens(start)) {
+          ndx--;
         }
       }
+      ndx--;
     }
 
-    @Override
-    public boolean hasNext () {
-      if (tokens == null) {
+    /**
+     * Moves on to the next Token that starts before the end position
+     *
+     * @return false if there is none
+     */
+    public boolean next () {
+      if (snapshot == null) {
         return false;
       }
+      TokenTree tokens = snapshot.tokens;
+      if (open != Integer.MIN_VALUE) {
+        open = Math.max(0, open + TokenTree.pairWeight(pairValue));
+      }
+      // skip the tokens the edit not lexed yet went through
+      do {
+        ndx++;
+      } while (ndx < tokens.size() && snapshot.isDirty(ndx));
       if (ndx >= tokens.size()) {
         return false;
       }
-      Token t = tokens.get(ndx);
-      return t.start < end;
+      start = snapshot.start(ndx);
+      if (start >= end) {
+        ndx = tokens.size();
+        return false;
+      }
+      type = tokens.type(ndx);
+      length = tokens.length(ndx);
+      pairValue = tokens.pairValue(ndx);
+      return true;
     }
 
-    @Override
-    public Token next () {
-      return tokens.get(ndx++);
+    public TokenType type () {
+      return type;
     }
 
-    @Override
-    public void remove () {
-      throw new UnsupportedOperationException();
+    public int start () {
+      return start;
     }
 
-    @Override
-    public boolean hasPrevious () {
-      if (tokens == null) {
-        return false;
-      }
-      if (ndx <= 0) {
-        return false;
-      }
-      Token t = tokens.get(ndx);
-      return t.end() > start;
+    public int length () {
+      return length;
     }
 
-    @Override
-    public Token previous () {
-      return tokens.get(ndx--);
+    public int end () {
+      return start + length;
     }
 
-    @Override
-    public int nextIndex () {
-      return ndx + 1;
+    public byte pairValue () {
+      return pairValue;
     }
 
-    @Override
-    public int previousIndex () {
-      return ndx - 1;
+    /**
+     * Returns how deeply the current Token is nested in pairs of (), [] and {}.
+     * The Tokens opening and closing a pair both have the depth of the pairs
+     * around them.  A closing Token with no pair open counts for nothing, so in
+     * <code>} ( x )</code> x has depth 1.
+     */
+    public int depth () {
+      if (open == Integer.MIN_VALUE) {
+        open = snapshot.pairDepth(ndx);
+      }
+      return Math.max(0, open + Math.min(0, TokenTree.pairWeight(pairValue)));
     }
 
-    @Override
-    public void set (Token e) {
-      throw new UnsupportedOperationException();
+    /**
+     * Returns the current Token as a Token object
+     */
+    public Token toToken () {
+      return new Token(type, start, length, pairValue);
     }
+  }
 
-    @Override
-    public void add (Token e) {
-      throw new UnsupportedOperationException();
+  /**
+   * Returns the assembly Tokens of the current Token of tok, lexing them if it
+   * is the first time they are asked for, or null if the Token isn't the
+   * template string of an asm statement or no Lexers are set for it.  The
+   * region they are in is the text between the quotes.  The text of the
+   * document is read into text, so painting doesn't allocate for every string.
+   */
+  EmbeddedTokens.Region getEmbeddedTokens (TokenCursor tok, Segment text) {
+    EmbeddedTokens e = embedded;
+    if (e == null || tok.type() != TokenType.STRING) {
+      return null;
+    }
+    try {
+      if (!isAsmTemplate(tok.snapshot, tok.ndx, text)) {
+        return null;
+      }
+      getText(tok.start(), tok.length(), text);
+      if (text.count == 0 || text.first() != '"') {
+        return null;
+      }
+      // leave out the closing quote, unless it is escaped and the string doesn't end
+      int end = text.count;
+      if (end > 1 && text.array[text.offset + end - 1] == '"') {
+        int escapes = 0;
+        while (end - 2 - escapes > 0 && text.array[text.offset + end - 2 - escapes] == '\\') {
+          escapes++;
+        }
+        if (escapes % 2 == 0) {
+          end--;
+        }
+      }
+      text.offset++;
+      text.count = end - 1;
+      return e.get(text, tok.start() + 1);
+    } catch (BadLocationException ex) {
+      return null;
     }
   }
 
+  /*
+   * Returns whether the string Token at index follows the ( of an asm statement
+   * with only strings and comments in between, which makes it a template
+   */
+  private boolean isAsmTemplate (Snapshot s, int index, Segment text) throws BadLocationException {
+    TokenTree tokens = s.tokens;
+    int i = index - 1;
+    while (i >= 0 && !s.isDirty(i) &&
+           (tokens.type(i) == TokenType.STRING || tokens.type(i) == TokenType.COMMENT)) {
+      i--;
+    }
+    if (i < 0 || s.isDirty(i) || tokens.pairValue(i) <= 0 || tokens.length(i) != 1) {
+      return false;
+    }
+    getText(s.start(i), 1, text);
+    if (text.first() != '(') {
+      return false;
+    }
+    for (i--; i >= 0 && !s.isDirty(i); i--) {
+      if (tokens.type(i) != TokenType.COMMENT) {
+        if (isWord(s, i, text, ASM)) {
+          return true;
+        } else if (!isWord(s, i, text, ASM_QUALIFIERS)) {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Returns whether the text of the Token at index is one of words, comparing
+   * it where it is in the document
+   */
+  private boolean isWord (Snapshot s, int index, Segment text, String[] words) throws BadLocationException {
+    int length = s.tokens.length(index);
+    boolean read = false;
+    for (String word : words) {
+      if (word.length() != length) {
+        continue;
+      }
+      if (!read) {
+        getText(s.start(index), length, text);
+        read = true;
+      }
+      int ii = 0;
+      while (ii < length && text.array[text.offset + ii] == word.charAt(ii)) {
+        ii++;
+      }
+      if (ii == length) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
-   * Returns an iterator of tokens between p0 and p1.
+   * Returns a cursor over the tokens between p0 and p1.
    *
    * @param start start position for getting tokens
    * @param end   position for last token
-   * @return Iterator for tokens that overall with range from start to end
+   * @return TokenCursor for tokens that overlap the range from start to end
    */
-  Iterator<Token> getTokens (int start, int end) {
-    return new TokenIterator(start, end);
+  TokenCursor getTokens (int start, int end) {
+    lexTo(end);
+    return new TokenCursor(snapshot, start, end);
+  }
+
+  /**
+   * Returns a cursor over the tokens of a line between p0 and p1.  If start is
+   * the start of the line, its first token is looked up in the line index
+   * instead of searched for.
+   *
+   * @param line  line number of start
+   * @param start start position for getting tokens
+   * @param end   position for last token
+   * @return TokenCursor for tokens that overlap the range from start to end
+   */
+  TokenCursor getTokens (int line, int start, int end) {
+    lexTo(end);
+    Snapshot s = snapshot;
+    // the line numbers of a Snapshot only match the document's if it isn't dirty
+    if (s != null && s.dirtyOffset < 0 && line < s.lineCount &&
+        getDefaultRootElement().getElement(line).getStartOffset() == start) {
+      return new TokenCursor(s, s.lineToken[line], start, end);
+    }
+    return new TokenCursor(s, start, end);
   }
 
   /**
@@ -215,25 +1591,22 @@ public class SyntaxDocument extends PlainDocument {
    * found (whitespace skipped) or if the position is out of range:
    */
   public Token getTokenAt (int pos) {
-    if (tokens == null || tokens.isEmpty() || pos > getLength()) {
+    lexTo(pos + 1);
+    Snapshot s = snapshot;
+    if (s == null || s.tokens.isEmpty() || pos > getLength()) {
       return null;
     }
-    Token tok = null;
-    Token tKey = new Token(TokenType.DEFAULT, pos, 1);
-    @SuppressWarnings("unchecked")
-    int ndx = Collections.binarySearch((List) tokens, tKey);
-    if (ndx < 0) {
-      // so, start from one before the token where we should be...
-      // -1 to get the location, and another -1 to go back..
-      ndx = (-ndx - 1 - 1 < 0) ? 0 : (-ndx - 1 - 1);
-      Token t = tokens.get(ndx);
-      if ((t.start <= pos) && (pos <= t.end())) {
-        tok = t;
-      }
-    } else {
-      tok = tokens.get(ndx);
+    // the token starting at pos if it has a single character, else the one before
+    int from = s.toTokens(pos);
+    int ndx = s.tokens.indexOf(from);
+    if (ndx == s.tokens.size() || s.tokens.start(ndx) != from || s.tokens.length(ndx) > 1) {
+      ndx = Math.max(ndx - 1, 0);
+    }
+    Token t = s.get(ndx);
+    if (t != null && (t.start <= pos) && (pos <= t.end())) {
+      return t;
     }
-    return tok;
+    return null;
   }
 
   /**
@@ -247,33 +1620,90 @@ public class SyntaxDocument extends PlainDocument {
    * @return the other pair's token, or null if nothing is found.
    */
   public Token getPairFor (Token t) {
-    if (t == null || t.pairValue == 0) {
+    Snapshot s = snapshot;
+    if (s == null || t == null || t.pairValue == 0) {
       return null;
     }
-    Token p = null;
-    int ndx = tokens.indexOf(t);
-    // w will be similar to a stack. The openners weght is added to it
-    // and the closers are subtracted from it (closers are already negative)
-    int w = t.pairValue;
-    int direction = (t.pairValue > 0) ? 1 : -1;
-    boolean done = false;
-    int v = Math.abs(t.pairValue);
-    while (!done) {
-      ndx += direction;
-      if (ndx < 0 || ndx >= tokens.size()) {
-        break;
-      }
-      Token current = tokens.get(ndx);
-      if (Math.abs(current.pairValue) == v) {
-        w += current.pairValue;
-        if (w == 0) {
-          p = current;
-          done = true;
-        }
+    TokenTree tokens = s.tokens;
+    int ndx = tokens.indexOf(s.toTokens(t.start));
+    if (ndx == tokens.size() || s.isDirty(ndx) || s.start(ndx) != t.start || tokens.length(ndx) != t.length ||
+        tokens.type(ndx) != t.type) {
+      return null;
+    }
+    // depth counts the pairs of the same kind opened (or closed) and not yet
+    // matched, other kinds are ignored.  The pair index skips all the Tokens that
+    // can't bring it back to 0.
+    int kind = Math.abs(t.pairValue);
+    if (t.pairValue > 0) {
+      return closeOf(s, ndx + 1, kind);
+    }
+    int pair = s.pairBackward(ndx, kind, new int[] { 1 });
+    return (pair < 0) ? null : s.get(pair);
+  }
+
+  /*
+   * Returns the Token closing the pair of the kind opened before index from of
+   * s, or null if there is none.  In lazy mode the text is lexed further on as
+   * long as it isn't found.
+   */
+  private Token closeOf (Snapshot s, int from, int kind) {
+    int[] depth = { 1 };
+    int pair = s.pairForward(from, kind, depth);
+    while (pair < 0 && s.lexed != Integer.MAX_VALUE) {
+      // in lazy mode, look further on in the copy lexed up to there, which has
+      // the same Tokens before
+      from = s.tokens.size();
+      lexTo(s.tokensEnd() + 1);
+      Snapshot next = snapshot;
+      if (next == s || next == null || next.version != s.version) {
+        return null;
       }
+      s = next;
+      pair = s.pairForward(from, kind, depth);
     }
+    return (pair < 0) ? null : s.get(pair);
+  }
 
-    return p;
+  /**
+   * Returns the innermost scope between { and } that pos is in, or null if
+   * it is at the top level.  The scope around it is the one at its start.
+   * <p>
+   * Both ends are found through the pair index kept with the Tokens, skipping
+   * whole blocks of Tokens, so this takes logarithmic time instead of a scan
+   * through the document.
+   */
+  public Scope getScopeAt (int pos) {
+    lexTo(pos);
+    Snapshot s = snapshot;
+    if (s == null || pos < 0 || pos > getLength()) {
+      return null;
+    }
+    // the Tokens before pos are the ones starting before it
+    int ndx = s.tokens.indexOf(s.toTokens(pos));
+    int open = s.pairBackward(ndx, CURLY, new int[] { 1 });
+    if (open < 0) {
+      return null;
+    }
+    Token close = closeOf(s, ndx, CURLY);
+    return new Scope(s.start(open), (close == null) ? getLength() : close.start, s.openPairs(open, CURLY) + 1);
+  }
+
+  /**
+   * Returns the number of scopes between { and } the start of line is in
+   */
+  public int getScopeDepth (int line) {
+    Element root = getDefaultRootElement();
+    if (line < 0 || line >= root.getElementCount()) {
+      return 0;
+    }
+    int pos = root.getElement(line).getStartOffset();
+    lexTo(pos);
+    Snapshot s = snapshot;
+    if (s == null) {
+      return 0;
+    }
+    int ndx = (s.dirtyOffset < 0 && line < s.lineCount) ? s.lineToken[line] : s.tokens.indexOf(s.toTokens(pos));
+    return s.openPairs(ndx, CURLY);
   }
 
   // public boolean isDirty() { return dirty; }
@@ -310,7 +1740,6 @@ public class SyntaxDocument extends PlainDocument {
   public void doUndo () {
     if (undo.canUndo()) {
       undo.undo();
-      parse();
     }
   }
 
@@ -324,7 +1753,6 @@ public class SyntaxDocument extends PlainDocument {
   public void doRedo () {
     if (undo.canRedo()) {
       undo.redo();
-      parse();
     }
   }
 
@@ -402,7 +1830,8 @@ public class SyntaxDocument extends PlainDocument {
 
   @Override
   public String toString () {
-    return "SyntaxDocument(" + lexer + ", " + ((tokens == null) ? 0 : tokens.size()) + " tokens)@" +
+    Snapshot s = snapshot;
+    return "SyntaxDocument(" + lexers + ", " + ((s == null) ? 0 : s.tokens.size()) + " tokens)@" +
       hashCode();
   }
 
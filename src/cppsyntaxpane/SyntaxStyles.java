@@ -36,6 +36,14 @@ class SyntaxStyles {
   private static Map<TokenType, SyntaxStyle> styles = new HashMap<>();
   private static SyntaxStyles instance = new SyntaxStyles();
   private static SyntaxStyle  DEFAULT_STYLE = new SyntaxStyle(Color.BLACK, Font.PLAIN);
+  // styles of pairs by their depth, taken in turn
+  private static SyntaxStyle[] pairStyles = {
+    new SyntaxStyle(new Color(0xb8860b), Font.PLAIN),
+    new SyntaxStyle(new Color(0xaa33aa), Font.PLAIN),
+    new SyntaxStyle(new Color(0x1e78c8), Font.PLAIN),
+    new SyntaxStyle(new Color(0x2e8b57), Font.PLAIN),
+    new SyntaxStyle(new Color(0xcc3333), Font.PLAIN),
+  };
 
   private SyntaxStyles () {
     // These are the various Attributes for each TokenType.
@@ -69,13 +77,36 @@ class SyntaxStyles {
     }
   }
 
+  /**
+   * Returns the style for pairs nested depth deep
+   */
+  SyntaxStyle getPairStyle (int depth) {
+    return pairStyles[depth % pairStyles.length];
+  }
+
   /**
    * Draws the given Token.  This will simply find the proper SyntaxStyle for
    * the TokenType and then asks the proper Style to draw the text of the
    * Token.
    */
   int drawText (Segment segment, int x, int y, Graphics graphics, TabExpander e, Token token) {
-    SyntaxStyle s = getStyle(token.type);
-    return s.drawText(segment, x, y, graphics, e, token.start);
+    return drawText(segment, x, y, graphics, e, token.type, token.start);
+  }
+
+  /**
+   * Draws the text of a Token of the given TokenType, starting at the given
+   * document offset
+   */
+  int drawText (Segment segment, int x, int y, Graphics graphics, TabExpander e, TokenType type, int start) {
+    SyntaxStyle s = getStyle(type);
+    return s.drawText(segment, x, y, graphics, e, start);
+  }
+
+  /**
+   * Draws the text of a pair Token nested depth deep, starting at the given
+   * document offset
+   */
+  int drawPair (Segment segment, int x, int y, Graphics graphics, TabExpander e, int depth, int start) {
+    return getPairStyle(depth).drawText(segment, x, y, graphics, e, start);
   }
 }
@@ -14,19 +14,33 @@
 package cppsyntaxpane;
 
 import java.awt.*;
-import java.util.Iterator;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.util.Map;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import javax.swing.text.Element;
 import javax.swing.text.PlainView;
+import javax.swing.text.Position;
 import javax.swing.text.Segment;
-import javax.swing.text.ViewFactory;
+import javax.swing.text.View;
 
-public class SyntaxView extends PlainView {
+/**
+ * Shows the lines of a SyntaxDocument colored by their Tokens.  The lines
+ * hidden by the folds of the document are left out: the others are shown one
+ * after another in rows, and a fold is marked at the end of its first line.
+ */
+public class SyntaxView extends PlainView implements PropertyChangeListener, TokenChangeListener {
 
   private SyntaxStyle                 DEFAULT_STYLE = SyntaxStyles.getInstance().getStyle(TokenType.DEFAULT);
   private static final SyntaxStyles   styles = SyntaxStyles.getInstance();
+  private static final Color          foldColor = new Color(0x888888);
+  private static final String         FOLD_TEXT = "...";
   private static RenderingHints       sysHints;
+  // line being drawn, so its tokens can be looked up by line
+  private int                         line;
+  // set while PlainView lays out a run of rows, whose lines are consecutive
+  private boolean                     unfolded;
 
   static {
     sysHints = null;
@@ -47,6 +61,119 @@ public class SyntaxView extends PlainView {
     super(element);
   }
 
+  @Override
+  public float getPreferredSpan (int axis) {
+    Folds folds = ((SyntaxDocument) getDocument()).getFolds();
+    if (axis != View.Y_AXIS || folds.isEmpty()) {
+      return super.getPreferredSpan(axis);
+    }
+    updateMetrics();
+    return folds.getRowCount() * metrics.getHeight();
+  }
+
+  /**
+   * Paints the rows in the clip a run of consecutive lines at a time.  Each
+   * run is painted by PlainView as if nothing was folded, with the allocation
+   * moved up by the height of the lines hidden before it, so the text and its
+   * highlights land in the rows of the run.  The hidden lines are never looked at.
+   */
+  @Override
+  public void paint (Graphics g, Shape a) {
+    Folds folds = ((SyntaxDocument) getDocument()).getFolds();
+    Rectangle clip = g.getClipBounds();
+    updateMetrics();
+    int h = metrics.getHeight();
+    if (folds.isEmpty() || clip == null || h <= 0) {
+      super.paint(g, a);
+      return;
+    }
+    Rectangle alloc = a.getBounds();
+    int lines = getElement().getElementCount();
+    int row = Math.max(0, (clip.y - alloc.y) / h);
+    int rowEnd = Math.min(folds.getRowCount(), (clip.y + clip.height - alloc.y + h - 1) / h);
+    unfolded = true;
+    try {
+      while (row < rowEnd) {
+        int first = folds.rowToLine(row);
+        int run = Math.min(rowEnd - row, folds.nextHidden(first) - first);
+        Rectangle shifted = new Rectangle(alloc.x, alloc.y + (row - first) * h, alloc.width, lines * h);
+        Graphics rg = g.create();
+        try {
+          rg.clipRect(clip.x, alloc.y + row * h, clip.width, run * h);
+          super.paint(rg, shifted);
+          if (folds.isFolded(first + run - 1)) {
+            drawFold(rg, first + run - 1, shifted);
+          }
+        } finally {
+          rg.dispose();
+        }
+        row += run;
+      }
+    } finally {
+      unfolded = false;
+    }
+  }
+
+  /*
+   * Marks the fold starting on line after the end of its text
+   */
+  private void drawFold (Graphics g, int lineIndex, Shape a) {
+    try {
+      Rectangle r = modelToView(getElement().getElement(lineIndex).getEndOffset() - 1, a,
+        Position.Bias.Forward).getBounds();
+      int x = r.x + metrics.charWidth(' ');
+      g.setColor(foldColor);
+      g.drawRect(x, r.y, metrics.stringWidth(FOLD_TEXT) + 2, r.height - 1);
+      g.drawString(FOLD_TEXT, x + 1, r.y + metrics.getAscent());
+    } catch (BadLocationException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  @Override
+  public int viewToModel (float fx, float fy, Shape a, Position.Bias[] bias) {
+    Folds folds = ((SyntaxDocument) getDocument()).getFolds();
+    Rectangle alloc = a.getBounds();
+    updateMetrics();
+    int h = metrics.getHeight();
+    if (folds.isEmpty() || h <= 0 || fy < alloc.y) {
+      return super.viewToModel(fx, fy, a, bias);
+    } else if (fy >= alloc.y + folds.getRowCount() * h) {
+      // below the last row
+      bias[0] = Position.Bias.Forward;
+      return getEndOffset() - 1;
+    }
+    // the same point in the row's line with nothing folded
+    int row = (int) ((fy - alloc.y) / h);
+    int lineIndex = folds.rowToLine(row);
+    unfolded = true;
+    try {
+      return super.viewToModel(fx, fy + (lineIndex - row) * h,
+        new Rectangle(alloc.x, alloc.y, alloc.width, getElement().getElementCount() * h), bias);
+    } finally {
+      unfolded = false;
+    }
+  }
+
+  /**
+   * Returns the rectangle of the row line is shown in
+   */
+  @Override
+  protected Rectangle lineToRect (Shape a, int line) {
+    if (!unfolded) {
+      line = ((SyntaxDocument) getDocument()).getFolds().lineToRow(line);
+    }
+    return super.lineToRect(a, line);
+  }
+
+  // deprecated since Java 9, but the float version that replaces it doesn't exist in Java 8
+  @Override
+  @SuppressWarnings("deprecation")
+  protected void drawLine (int lineIndex, Graphics graphics, int x, int y) {
+    line = lineIndex;
+    super.drawLine(lineIndex, graphics, x, y);
+  }
+
   @Override
   protected int drawUnselectedText (Graphics graphics, int x, int y, int p0, int p1) {
     setRenderingHits((Graphics2D) graphics);
@@ -56,21 +183,21 @@ public class SyntaxView extends PlainView {
     Segment segment = getLineBuffer();
     try {
       // Colour the parts
-      Iterator<Token> it = doc.getTokens(p0, p1);
+      SyntaxDocument.TokenCursor tok = doc.getTokens(line, p0, p1);
+      boolean pairColors = doc.isPairColors();
       int start = p0;
-      while (it.hasNext()) {
-        Token tok = it.next();
+      while (tok.next()) {
         // if there is a gap between the next token start and where we
         // should be starting (spaces not returned in tokens), then draw
         // it in the default type
-        if (start < tok.start) {
-          doc.getText(start, tok.start - start, segment);
+        if (start < tok.start()) {
+          doc.getText(start, tok.start() - start, segment);
           x = DEFAULT_STYLE.drawText(segment, x, y, graphics, this, start);
         }
         // t and s are the actual start and length of what we should
         // put on the screen.  assume these are the whole token....
-        int l = tok.length;
-        int s = tok.start;
+        int l = tok.length();
+        int s = tok.start();
         // ... unless the token starts before p0:
         if (s < p0) {
           // token is before what is requested. adgust the length and s
@@ -82,8 +209,16 @@ public class SyntaxView extends PlainView {
         if (s + l > p1) {
           l = p1 - s;
         }
-        doc.getText(s, l, segment);
-        x = styles.drawText(segment, x, y, graphics, this, tok);
+        EmbeddedTokens.Region region = doc.getEmbeddedTokens(tok, segment);
+        if (region != null) {
+          x = drawEmbedded(region, graphics, x, y, s, s + l);
+        } else if (pairColors && tok.pairValue() != 0) {
+          doc.getText(s, l, segment);
+          x = styles.drawPair(segment, x, y, graphics, this, tok.depth(), tok.start());
+        } else {
+          doc.getText(s, l, segment);
+          x = styles.drawText(segment, x, y, graphics, this, tok.type(), tok.start());
+        }
         start = tok.end();
       }
       // now for any remaining text not tokenized:
@@ -100,6 +235,39 @@ public class SyntaxView extends PlainView {
     return x;
   }
 
+  /*
+   * Draws the text from p0 to p1 of a string holding an embedded region, the
+   * region in the styles of its Tokens and the rest as a string
+   */
+  private int drawEmbedded (EmbeddedTokens.Region region, Graphics graphics, int x, int y, int p0, int p1)
+    throws BadLocationException {
+    Document doc = getDocument();
+    Segment segment = getLineBuffer();
+    SyntaxStyle string = styles.getStyle(TokenType.STRING);
+    int start = p0;
+    for (Token t : region.tokens) {
+      int s = Math.max(t.start + region.shift, start);
+      int e = Math.min(t.end() + region.shift, p1);
+      if (s >= p1) {
+        break;
+      } else if (s >= e) {
+        continue;
+      }
+      if (start < s) {
+        doc.getText(start, s - start, segment);
+        x = string.drawText(segment, x, y, graphics, this, start);
+      }
+      doc.getText(s, e - s, segment);
+      x = styles.drawText(segment, x, y, graphics, this, t.type, s);
+      start = e;
+    }
+    if (start < p1) {
+      doc.getText(start, p1 - start, segment);
+      x = string.drawText(segment, x, y, graphics, this, start);
+    }
+    return x;
+  }
+
   @Override
   protected int drawSelectedText (Graphics graphics, int x, int y, int p0, int p1) {
     return drawUnselectedText(graphics, x, y, p0, p1);
@@ -113,10 +281,54 @@ public class SyntaxView extends PlainView {
     g2d.addRenderingHints(sysHints);
   }
 
+  /**
+   * Listens for the Tokens of the document while the view is in use, so the
+   * lines whose Tokens changed can be repainted, and all of it when pair
+   * coloring is switched, when regions are folded, or when the Lexers of the
+   * embedded assembly are set
+   */
+  @Override
+  public void setParent (View parent) {
+    SyntaxDocument doc = (SyntaxDocument) getDocument();
+    if (parent != null) {
+      doc.addTokenChangeListener(this);
+      doc.addPropertyChangeListener(SyntaxDocument.PAIR_COLORS, this);
+      doc.addPropertyChangeListener(SyntaxDocument.FOLDS, this);
+      doc.addPropertyChangeListener(SyntaxDocument.EMBEDDED_LEXERS, this);
+    } else {
+      doc.removeTokenChangeListener(this);
+      doc.removePropertyChangeListener(SyntaxDocument.PAIR_COLORS, this);
+      doc.removePropertyChangeListener(SyntaxDocument.FOLDS, this);
+      doc.removePropertyChangeListener(SyntaxDocument.EMBEDDED_LEXERS, this);
+    }
+    super.setParent(parent);
+  }
+
   @Override
-  protected void updateDamage (javax.swing.event.DocumentEvent changes, Shape a, ViewFactory f) {
-    super.updateDamage(changes, a, f);
+  public void propertyChange (PropertyChangeEvent evt) {
+    if (SyntaxDocument.FOLDS.equals(evt.getPropertyName())) {
+      preferenceChanged(null, false, true);
+    }
     java.awt.Component host = getContainer();
-    host.repaint();
+    if (host != null) {
+      host.repaint();
+    }
+  }
+
+  /**
+   * Repaints the rows of the lines whose Tokens changed.  The edited lines
+   * themselves are repainted by PlainView on the DocumentEvent.
+   */
+  @Override
+  public void tokensChanged (TokenChangeEvent e) {
+    Container host = getContainer();
+    if (host == null) {
+      return;
+    }
+    Element root = getElement();
+    Insets insets = host.getInsets();
+    Rectangle alloc = new Rectangle(insets.left, insets.top, host.getWidth() - insets.left - insets.right,
+                                    host.getHeight() - insets.top - insets.bottom);
+    damageLineRange(root.getElementIndex(e.getStart()), root.getElementIndex(e.getEnd()), alloc, host);
   }
 }
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane;
+
+import java.util.EventObject;
+
+/**
+ * Tells which Tokens of a SyntaxDocument a (re)lex changed, and the text they
+ * cover, whose coloring may have changed.  That can be much more than the edit
+ * lexed: typing a /* turns the rest of the text into a comment.  The Tokens
+ * that came out the same as before at either end of the re-lexed text aren't
+ * counted as changed, nor is a long Token that merely grew or shrank with an
+ * edit inside it, as only the edited text of it looks different.
+ * <p>
+ * In synchronous mode the event follows the DocumentEvent of the edit.  In
+ * asynchronous mode it comes on the event dispatch thread once the Tokens are
+ * published; if the document was edited again meanwhile, the range is all of
+ * the text.
+ * <p>
+ * Like Tokens, the events are values that don't follow later edits.
+ */
+@SuppressWarnings("serial")
+public class TokenChangeEvent extends EventObject {
+  private final Token first;
+  private final Token last;
+  private final int   start;
+  private final int   end;
+
+  public TokenChangeEvent (SyntaxDocument source, Token first, Token last, int start, int end) {
+    super(source);
+    this.first = first;
+    this.last = last;
+    this.start = start;
+    this.end = end;
+  }
+
+  public SyntaxDocument getDocument () {
+    return (SyntaxDocument) getSource();
+  }
+
+  /**
+   * Returns the first of the new Tokens that changed, or null if the change
+   * only removed Tokens or the range is all of the text
+   */
+  public Token getFirstToken () {
+    return first;
+  }
+
+  /**
+   * Returns the last of the new Tokens that changed, or null if the change
+   * only removed Tokens or the range is all of the text
+   */
+  public Token getLastToken () {
+    return last;
+  }
+
+  /**
+   * Returns the document offset the changed text starts at
+   */
+  public int getStart () {
+    return start;
+  }
+
+  /**
+   * Returns the document offset the changed text ends at
+   */
+  public int getEnd () {
+    return end;
+  }
+
+  @Override
+  public String toString () {
+    return String.format("TokenChangeEvent(%d, %d, %s, %s)", start, end, first, last);
+  }
+}
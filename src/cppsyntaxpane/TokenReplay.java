@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.text.Segment;
+
+/**
+ * The scan of a Lexer that only parses, done for the default methods of
+ * {@link Lexer} by parsing the text into a List and handing out its Tokens.
+ * <p>
+ * Nothing is known of the Lexer's state inside the text, so a scan starts at the
+ * beginning of the text every time it is resumed, and every checkpoint says the
+ * match pending there started at the beginning.  The line checkpoints are all
+ * reported before the first Token.  Each scan also gives its checkpoints a state
+ * of its own, so a document never takes the Tokens after an edit to be the same
+ * as before, and lexes all the rest of its text again.
+ */
+final class TokenReplay {
+  // the replay of each Lexer using the default methods
+  private static final Map<Lexer, TokenReplay> replays = Collections.synchronizedMap(new WeakHashMap<>());
+  // gives the checkpoints of each scan their state, never 0
+  private static final AtomicInteger scans = new AtomicInteger();
+
+  private final List<Token>  tokens = new ArrayList<>();
+  private final LexerState   stop = new LexerState();
+  // the Lexer to parse with and the text to scan, until it is parsed
+  private Lexer              lexer;
+  private Segment            segment;
+  private int                ofst;
+  private int                origin;     // document offset the text is parsed from
+  private int                position;   // document offset the line starts are reported after
+  private boolean            last;
+  private Lexer.CheckpointListener listener;
+  private int                index;
+
+  static TokenReplay of (Lexer lexer) {
+    TokenReplay replay = replays.get(lexer);
+    if (replay == null) {
+      replay = new TokenReplay();
+      replays.put(lexer, replay);
+    }
+    return replay;
+  }
+
+  void start (Lexer lexer, Segment segment, int ofst, LexerState state, boolean last,
+              Lexer.CheckpointListener listener) {
+    this.lexer = lexer;
+    this.segment = segment;
+    this.ofst = ofst;
+    this.origin = (state == null) ? ofst : state.start;
+    this.position = (state == null) ? ofst : state.position;
+    this.last = last;
+    this.listener = listener;
+    tokens.clear();
+    index = -1;
+    stop.set(0, position, origin, origin);
+  }
+
+  TokenType next () {
+    if (segment != null && !scan()) {
+      return null;
+    }
+    if (index + 1 >= tokens.size()) {
+      tokens.clear();
+      return null;
+    }
+    return tokens.get(++index).type;
+  }
+
+  /*
+   * Reports the line starts to the listener and parses the text, unless the
+   * listener or the end of the segment stops the scan first
+   */
+  private boolean scan () {
+    Segment seg = segment;
+    Lexer lexer = this.lexer;
+    segment = null;
+    this.lexer = null;
+    int end = ofst + seg.count;
+    int state = scans.incrementAndGet() | Integer.MIN_VALUE;
+    if (listener != null) {
+      for (int pos = position; pos < end; pos++) {
+        if (seg.array[seg.offset + pos - ofst] == '\n') {
+          stop.set(state, pos + 1, origin, origin);
+          if (!listener.checkpoint(stop)) {
+            return false;
+          }
+        }
+      }
+    }
+    if (!last) {
+      // the text goes on, wait to be resumed with more of it
+      stop.set(state, end, origin, origin);
+      return false;
+    }
+    lexer.parse(new Segment(seg.array, seg.offset + origin - ofst, end - origin), origin, tokens);
+    stop.set(0, end, end, end);
+    return true;
+  }
+
+  int getTokenStart () {
+    return tokens.get(index).start;
+  }
+
+  int getTokenLength () {
+    return tokens.get(index).length;
+  }
+
+  byte getPairValue () {
+    return tokens.get(index).pairValue;
+  }
+
+  void getState (LexerState state) {
+    state.set(stop.state, stop.position, stop.start, stop.marked);
+  }
+}
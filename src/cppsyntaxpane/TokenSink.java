@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane;
+
+/**
+ * Receives the Tokens a Lexer finds, one call per Token and in order, without
+ * a Token object or a List being made for them.
+ *
+ * @see Lexer#parse(javax.swing.text.Segment, int, TokenSink)
+ */
+public interface TokenSink {
+  /**
+   * Called for each Token found.
+   * @param type TokenType of the Token
+   * @param start document offset of the Token
+   * @param length length of the Token
+   * @param pairValue pair value of the Token, 0 if it doesn't pair
+   */
+  void token (TokenType type, int start, int length, byte pairValue);
+}
@@ -0,0 +1,648 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane;
+
+import java.util.Arrays;
+
+/**
+ * The Tokens of a document, sorted by start, in blocks of a few hundred.  The
+ * starts in a block are kept relative to the block, and the offsets of the
+ * blocks and the number of Tokens before each are kept in two Fenwick trees.
+ * Replacing the Tokens around an edit thus only rewrites the block they are
+ * in, and moving all the Tokens after it updates a few nodes of the tree, so
+ * both take O(log n) time instead of O(n).
+ * <p>
+ * Each block also sums up its pair Tokens, in a segment tree over the blocks,
+ * so finding the Token pairing with another skips all the blocks in between
+ * that can't hold it.
+ * <p>
+ * Copies share their blocks until either side modifies one, so a copy only
+ * takes time in the number of blocks.
+ */
+final class TokenTree {
+  // number of Tokens of the blocks made when rebuilding, and the most a block takes
+  private static final int BLOCK = 512;
+  private static final int MAX_BLOCK = 2 * BLOCK;
+
+  // pair values that are indexed: those of parentheses, brackets and braces
+  private static final int PAIR_KINDS = 3;
+  // the kind standing for all of them, as one
+  static final int         ANY_PAIR = 0;
+  // for each pair value, then for all of them: the sum of the pair values in a block
+  // counted as +1 or -1, and the least sum of its prefixes and the greatest of its suffixes
+  private static final int SUM = 0;
+  private static final int MIN_PREFIX = 1;
+  private static final int MAX_SUFFIX = 2;
+  private static final int ANY = 3 * PAIR_KINDS;
+  private static final int SUMMARY = ANY + 3;
+
+  private static final TokenType[] TYPES = TokenType.values();
+
+  private static final class Block {
+    int[]   starts;     // relative to the block's offset
+    int[]   lengths;
+    byte[]  types;
+    byte[]  pairs;
+    int     size;
+    boolean shared;     // whether the block is used by more than one tree
+    final int[] summary = new int[SUMMARY];
+
+    Block (int capacity) {
+      starts = new int[capacity];
+      lengths = new int[capacity];
+      types = new byte[capacity];
+      pairs = new byte[capacity];
+    }
+
+    Block copy (int capacity) {
+      Block b = new Block(capacity);
+      System.arraycopy(starts, 0, b.starts, 0, size);
+      System.arraycopy(lengths, 0, b.lengths, 0, size);
+      System.arraycopy(types, 0, b.types, 0, size);
+      System.arraycopy(pairs, 0, b.pairs, 0, size);
+      System.arraycopy(summary, 0, b.summary, 0, SUMMARY);
+      b.size = size;
+      return b;
+    }
+
+    /*
+     * Sums up the pair Tokens, after they changed
+     */
+    void summarize () {
+      Arrays.fill(summary, 0);
+      for (int ii = 0; ii < size; ii++) {
+        int kind = Math.abs(pairs[ii]);
+        if (kind > 0 && kind <= PAIR_KINDS) {
+          int at = 3 * (kind - 1);
+          int weight = (pairs[ii] > 0) ? 1 : -1;
+          summary[at + SUM] += weight;
+          summary[at + MIN_PREFIX] = Math.min(summary[at + MIN_PREFIX], summary[at + SUM]);
+          summary[ANY + SUM] += weight;
+          summary[ANY + MIN_PREFIX] = Math.min(summary[ANY + MIN_PREFIX], summary[ANY + SUM]);
+        }
+      }
+      // the greatest suffix is what is left over after the least prefix
+      for (int at = 0; at < SUMMARY; at += 3) {
+        summary[at + MAX_SUFFIX] = summary[at + SUM] - summary[at + MIN_PREFIX];
+      }
+    }
+  }
+
+  private Block[] blocks;
+  private int     blockCount;
+  // offset of each block, not counting the shifts pending in shiftTree
+  private int[]   offsets;
+  // Fenwick trees, indexed from 1, of the number of Tokens in each block and of the
+  // shifts to add to the offsets of each block and all the ones after it
+  private int[]   countTree;
+  private int[]   shiftTree;
+  // segment tree of the block summaries, the root at 1 and the leaves from leaves on
+  private int[]   pairTree;
+  private int     leaves;
+  private int     size;
+
+  TokenTree () {
+    blocks = new Block[0];
+    offsets = new int[0];
+    countTree = new int[1];
+    shiftTree = new int[1];
+    pairTree = new int[2 * SUMMARY];
+    leaves = 1;
+  }
+
+  TokenTree (TokenTree other) {
+    blocks = Arrays.copyOf(other.blocks, other.blockCount);
+    blockCount = other.blockCount;
+    for (int ii = 0; ii < blockCount; ii++) {
+      blocks[ii].shared = true;
+    }
+    offsets = Arrays.copyOf(other.offsets, other.blockCount);
+    countTree = Arrays.copyOf(other.countTree, other.blockCount + 1);
+    shiftTree = Arrays.copyOf(other.shiftTree, other.blockCount + 1);
+    pairTree = other.pairTree.clone();
+    leaves = other.leaves;
+    size = other.size;
+  }
+
+  int size () {
+    return size;
+  }
+
+  boolean isEmpty () {
+    return size == 0;
+  }
+
+  int start (int index) {
+    int block = blockOf(index);
+    return offset(block) + blocks[block].starts[index - first(block)];
+  }
+
+  int length (int index) {
+    int block = blockOf(index);
+    return blocks[block].lengths[index - first(block)];
+  }
+
+  int end (int index) {
+    int block = blockOf(index);
+    int ii = index - first(block);
+    return offset(block) + blocks[block].starts[ii] + blocks[block].lengths[ii];
+  }
+
+  TokenType type (int index) {
+    int block = blockOf(index);
+    return TYPES[blocks[block].types[index - first(block)]];
+  }
+
+  byte pairValue (int index) {
+    int block = blockOf(index);
+    return blocks[block].pairs[index - first(block)];
+  }
+
+  Token get (int index) {
+    int block = blockOf(index);
+    Block b = blocks[block];
+    int ii = index - first(block);
+    return new Token(TYPES[b.types[ii]], offset(block) + b.starts[ii], b.lengths[ii], b.pairs[ii]);
+  }
+
+  void setLength (int index, int length) {
+    int block = blockOf(index);
+    writable(block).lengths[index - first(block)] = length;
+  }
+
+  /**
+   * Returns the index of the first Token that starts at or after pos
+   */
+  int indexOf (int pos) {
+    // the first block whose last Token starts at or after pos
+    int lo = 0;
+    int hi = blockCount;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      Block b = blocks[mid];
+      if (offset(mid) + b.starts[b.size - 1] < pos) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    if (lo == blockCount) {
+      return size;
+    }
+    Block b = blocks[lo];
+    int rel = pos - offset(lo);
+    int first = first(lo);
+    int l = 0;
+    int h = b.size;
+    while (l < h) {
+      int mid = (l + h) >>> 1;
+      if (b.starts[mid] < rel) {
+        l = mid + 1;
+      } else {
+        h = mid;
+      }
+    }
+    return first + l;
+  }
+
+  /**
+   * Moves the Tokens from index from on by delta
+   */
+  void shift (int from, int delta) {
+    if (delta == 0 || from >= size) {
+      return;
+    }
+    int block = blockOf(from);
+    int ii = from - first(block);
+    if (ii > 0) {
+      Block b = writable(block);
+      for (; ii < b.size; ii++) {
+        b.starts[ii] += delta;
+      }
+      block++;
+    }
+    if (block < blockCount) {
+      add(shiftTree, block, delta);
+    }
+  }
+
+  /**
+   * Replaces the Tokens from index from up to to with all the Tokens of fresh.
+   * Within a block that is done in place, otherwise the blocks concerned are
+   * made anew.
+   */
+  void replace (int from, int to, TokenStore fresh) {
+    if (blockCount == 0) {
+      rebuild(0, 0, null, 0, 0, fresh, null, 0, 0);
+      return;
+    }
+    int first = (from == size) ? blockCount - 1 : blockOf(from);
+    int last = (to == from) ? first : blockOf(to - 1);
+    int firstStart = first(first);
+    int lastStart = (last == first) ? firstStart : first(last);
+    int ii = from - firstStart;
+    int jj = to - lastStart;
+    Block b = blocks[first];
+    int count = b.size - (jj - ii) + fresh.size();
+    if (first == last && count > 0 && count <= MAX_BLOCK) {
+      b = writable(first);
+      if (count > b.starts.length) {
+        b = blocks[first] = b.copy(Math.min(MAX_BLOCK, count + (count >> 3)));
+      }
+      int tail = b.size - jj;
+      int at = ii + fresh.size();
+      System.arraycopy(b.starts, jj, b.starts, at, tail);
+      System.arraycopy(b.lengths, jj, b.lengths, at, tail);
+      System.arraycopy(b.types, jj, b.types, at, tail);
+      System.arraycopy(b.pairs, jj, b.pairs, at, tail);
+      int offset = offset(first);
+      for (int kk = 0; kk < fresh.size(); kk++) {
+        b.starts[ii + kk] = fresh.start(kk) - offset;
+        b.lengths[ii + kk] = fresh.length(kk);
+        b.types[ii + kk] = (byte) fresh.type(kk).ordinal();
+        b.pairs[ii + kk] = fresh.pairValue(kk);
+      }
+      add(countTree, first, count - b.size);
+      size += count - b.size;
+      b.size = count;
+      b.summarize();
+      summarize(first);
+      return;
+    }
+    rebuild(first, last + 1, blocks[first], offset(first), ii, fresh, blocks[last], offset(last), jj);
+  }
+
+  /*
+   * Replaces the blocks from index from up to to with new ones holding the Tokens
+   * of head before index headEnd, those of fresh, and those of tail from index
+   * tailStart on.  All the block offsets are then settled and the trees built anew.
+   */
+  private void rebuild (int from, int to, Block head, int headOffset, int headEnd, TokenStore fresh,
+                        Block tail, int tailOffset, int tailStart) {
+    int tailCount = (tail == null) ? 0 : tail.size - tailStart;
+    int count = headEnd + fresh.size() + tailCount;
+    int made = (count + BLOCK - 1) / BLOCK;
+    int total = blockCount - (to - from) + made;
+    Block[] newBlocks = new Block[Math.max(total, 16)];
+    int[] newOffsets = new int[newBlocks.length];
+    for (int kk = 0; kk < from; kk++) {
+      newBlocks[kk] = blocks[kk];
+      newOffsets[kk] = offset(kk);
+    }
+    for (int kk = to; kk < blockCount; kk++) {
+      newBlocks[kk - to + from + made] = blocks[kk];
+      newOffsets[kk - to + from + made] = offset(kk);
+    }
+    // deal the Tokens out evenly, relative to the first one of each block
+    int done = 0;
+    for (int kk = 0; kk < made; kk++) {
+      int n = (count - done) / (made - kk);
+      Block b = new Block(n + (n >> 3));
+      int offset = 0;
+      for (int ll = 0; ll < n; ll++, done++) {
+        int start;
+        if (done < headEnd) {
+          start = headOffset + head.starts[done];
+          b.lengths[ll] = head.lengths[done];
+          b.types[ll] = head.types[done];
+          b.pairs[ll] = head.pairs[done];
+        } else if (done < headEnd + fresh.size()) {
+          int ii = done - headEnd;
+          start = fresh.start(ii);
+          b.lengths[ll] = fresh.length(ii);
+          b.types[ll] = (byte) fresh.type(ii).ordinal();
+          b.pairs[ll] = fresh.pairValue(ii);
+        } else {
+          int ii = done - headEnd - fresh.size() + tailStart;
+          start = tailOffset + tail.starts[ii];
+          b.lengths[ll] = tail.lengths[ii];
+          b.types[ll] = tail.types[ii];
+          b.pairs[ll] = tail.pairs[ii];
+        }
+        if (ll == 0) {
+          offset = start;
+        }
+        b.starts[ll] = start - offset;
+      }
+      b.size = n;
+      b.summarize();
+      newBlocks[from + kk] = b;
+      newOffsets[from + kk] = offset;
+    }
+    blocks = newBlocks;
+    offsets = newOffsets;
+    blockCount = total;
+    size = 0;
+    countTree = new int[newBlocks.length + 1];
+    shiftTree = new int[newBlocks.length + 1];
+    for (int kk = 0; kk < total; kk++) {
+      size += blocks[kk].size;
+      // build in linear time: each node passes its sum on to its parent
+      countTree[kk + 1] += blocks[kk].size;
+      int parent = (kk + 1) + ((kk + 1) & -(kk + 1));
+      if (parent <= total) {
+        countTree[parent] += countTree[kk + 1];
+      }
+    }
+    leaves = Integer.highestOneBit(Math.max(total, 1) * 2 - 1);
+    pairTree = new int[2 * leaves * SUMMARY];
+    for (int kk = 0; kk < total; kk++) {
+      System.arraycopy(blocks[kk].summary, 0, pairTree, (leaves + kk) * SUMMARY, SUMMARY);
+    }
+    for (int node = leaves - 1; node > 0; node--) {
+      combine(node);
+    }
+  }
+
+  /**
+   * Returns how a Token with pairValue counts towards the depth of the ones
+   * after it: 1 if it opens a pair, -1 if it closes one, else 0
+   */
+  static int pairWeight (byte pairValue) {
+    return (pairValue == 0 || Math.abs(pairValue) > PAIR_KINDS) ? 0 : (pairValue > 0) ? 1 : -1;
+  }
+
+  /**
+   * Sums up the pairs of the kind, or of all kinds as one if it is ANY_PAIR,
+   * from index from up to to, after the ones summed up in summary already: the
+   * sum of the pair values counted as +1 or -1 is added to summary[0], and
+   * summary[1] is lowered to the least sum of the prefixes.  The number of pairs
+   * left open is then the difference, which doesn't count the Tokens closing a
+   * pair that wasn't open.
+   */
+  void pairSummary (int from, int to, int kind, int[] summary) {
+    if (kind > PAIR_KINDS) {
+      return;
+    }
+    int at = (kind == ANY_PAIR) ? ANY : 3 * (kind - 1);
+    int ii = from;
+    while (ii < to) {
+      int block = blockOf(ii);
+      int first = first(block);
+      if (ii == first && first + blocks[block].size <= to) {
+        int last = blockOf(to - 1);
+        if (first(last) + blocks[last].size > to) {
+          last--;
+        }
+        sumUp(1, 0, leaves - 1, block, last, at, summary);
+        ii = first(last + 1);
+        continue;
+      }
+      byte[] pairs = blocks[block].pairs;
+      int end = Math.min(to, first + blocks[block].size);
+      for (; ii < end; ii++) {
+        int pair = pairs[ii - first];
+        if ((kind == ANY_PAIR) ? pairWeight((byte) pair) != 0 : pair == kind || pair == -kind) {
+          summary[0] += (pair > 0) ? 1 : -1;
+          summary[1] = Math.min(summary[1], summary[0]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Looks for the Token closing the pair opened before index from, going on
+   * up to index to.  depth holds the number of pairs of the kind open, and is
+   * updated to what is left open at to if the Token isn't found.
+   *
+   * @return the index of the closing Token, or -1 if it isn't before to
+   */
+  int pairForward (int from, int to, int kind, int[] depth) {
+    int ii = from;
+    while (ii < to) {
+      int block = blockOf(ii);
+      int first = first(block);
+      if (ii == first && kind <= PAIR_KINDS) {
+        // skip the whole blocks that can't close the pair
+        int last = blockOf(to - 1);
+        if (first(last) + blocks[last].size > to) {
+          last--;
+        }
+        if (last >= block) {
+          int found = forward(1, 0, leaves - 1, block, last, 3 * (kind - 1), depth);
+          if (found < 0) {
+            ii = first(last + 1);
+            continue;
+          }
+          block = found;
+          first = first(block);
+          ii = first;
+        }
+      }
+      byte[] pairs = blocks[block].pairs;
+      int end = Math.min(to, first + blocks[block].size);
+      for (; ii < end; ii++) {
+        int pair = pairs[ii - first];
+        if (pair == kind) {
+          depth[0]++;
+        } else if (pair == -kind && --depth[0] == 0) {
+          return ii;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Looks back from index to for the Token opening the pair closed after it,
+   * going on down to index from.  depth holds the number of pairs of the kind
+   * closed, and is updated to what is left closed at from if the Token isn't found.
+   *
+   * @return the index of the opening Token, or -1 if it isn't at or after from
+   */
+  int pairBackward (int from, int to, int kind, int[] depth) {
+    int ii = to;
+    while (ii > from) {
+      int block = blockOf(ii - 1);
+      int first = first(block);
+      if (ii == first + blocks[block].size && kind <= PAIR_KINDS) {
+        // skip the whole blocks that can't open the pair
+        int last = blockOf(from);
+        if (first(last) < from) {
+          last++;
+        }
+        if (last <= block) {
+          int found = backward(1, 0, leaves - 1, last, block, 3 * (kind - 1), depth);
+          if (found < 0) {
+            ii = first(last);
+            continue;
+          }
+          block = found;
+          first = first(block);
+          ii = first + blocks[block].size;
+        }
+      }
+      byte[] pairs = blocks[block].pairs;
+      int end = Math.max(from, first);
+      while (ii > end) {
+        int pair = pairs[--ii - first];
+        if (pair == -kind) {
+          depth[0]++;
+        } else if (pair == kind && --depth[0] == 0) {
+          return ii;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /*
+   * Returns the first block from l to r where depth open pairs of the kind at
+   * offset at may get closed, after adding the sums of the blocks before it to depth
+   */
+  private int forward (int node, int nl, int nr, int l, int r, int at, int[] depth) {
+    if (nr < l || nl > r) {
+      return -1;
+    }
+    int summary = node * SUMMARY + at;
+    if (l <= nl && nr <= r && depth[0] + pairTree[summary + MIN_PREFIX] > 0) {
+      depth[0] += pairTree[summary + SUM];
+      return -1;
+    }
+    if (nl == nr) {
+      return nl;
+    }
+    int mid = (nl + nr) >>> 1;
+    int found = forward(2 * node, nl, mid, l, r, at, depth);
+    return (found >= 0) ? found : forward(2 * node + 1, mid + 1, nr, l, r, at, depth);
+  }
+
+  /*
+   * Returns the last block from l to r where depth closed pairs of the kind at
+   * offset at may get opened, after taking the sums of the blocks after it from depth
+   */
+  private int backward (int node, int nl, int nr, int l, int r, int at, int[] depth) {
+    if (nr < l || nl > r) {
+      return -1;
+    }
+    int summary = node * SUMMARY + at;
+    if (l <= nl && nr <= r && depth[0] - pairTree[summary + MAX_SUFFIX] > 0) {
+      depth[0] -= pairTree[summary + SUM];
+      return -1;
+    }
+    if (nl == nr) {
+      return nl;
+    }
+    int mid = (nl + nr) >>> 1;
+    int found = backward(2 * node + 1, mid + 1, nr, l, r, at, depth);
+    return (found >= 0) ? found : backward(2 * node, nl, mid, l, r, at, depth);
+  }
+
+  /*
+   * Adds the summaries of the blocks from l to r of the kind at offset at to
+   * summary, in order
+   */
+  private void sumUp (int node, int nl, int nr, int l, int r, int at, int[] summary) {
+    if (nr < l || nl > r) {
+      return;
+    }
+    if (l <= nl && nr <= r) {
+      int sums = node * SUMMARY + at;
+      summary[1] = Math.min(summary[1], summary[0] + pairTree[sums + MIN_PREFIX]);
+      summary[0] += pairTree[sums + SUM];
+      return;
+    }
+    int mid = (nl + nr) >>> 1;
+    sumUp(2 * node, nl, mid, l, r, at, summary);
+    sumUp(2 * node + 1, mid + 1, nr, l, r, at, summary);
+  }
+
+  /*
+   * Updates the segment tree to the summary of block
+   */
+  private void summarize (int block) {
+    int node = leaves + block;
+    System.arraycopy(blocks[block].summary, 0, pairTree, node * SUMMARY, SUMMARY);
+    for (node >>= 1; node > 0; node >>= 1) {
+      combine(node);
+    }
+  }
+
+  /*
+   * Sums up the two children of node
+   */
+  private void combine (int node) {
+    int at = node * SUMMARY;
+    int left = 2 * at;
+    int right = left + SUMMARY;
+    for (int ii = 0; ii < SUMMARY; ii += 3) {
+      pairTree[at + ii + SUM] = pairTree[left + ii + SUM] + pairTree[right + ii + SUM];
+      pairTree[at + ii + MIN_PREFIX] = Math.min(pairTree[left + ii + MIN_PREFIX],
+                                                pairTree[left + ii + SUM] + pairTree[right + ii + MIN_PREFIX]);
+      pairTree[at + ii + MAX_SUFFIX] = Math.max(pairTree[right + ii + MAX_SUFFIX],
+                                                pairTree[right + ii + SUM] + pairTree[left + ii + MAX_SUFFIX]);
+    }
+  }
+
+  /*
+   * Returns the block at index, copied first if it is shared with another tree
+   */
+  private Block writable (int block) {
+    Block b = blocks[block];
+    if (b.shared) {
+      b = blocks[block] = b.copy(b.starts.length);
+    }
+    return b;
+  }
+
+  /*
+   * Returns the index of the block holding the Token at index
+   */
+  private int blockOf (int index) {
+    // descend the count tree to the last block starting at or before index
+    int block = 0;
+    for (int step = Integer.highestOneBit(blockCount); step > 0; step >>= 1) {
+      int next = block + step;
+      if (next <= blockCount && countTree[next] <= index) {
+        block = next;
+        index -= countTree[next];
+      }
+    }
+    return block;
+  }
+
+  /*
+   * Returns the index of the first Token of block
+   */
+  private int first (int block) {
+    return sum(countTree, block);
+  }
+
+  private int offset (int block) {
+    return offsets[block] + sum(shiftTree, block + 1);
+  }
+
+  /*
+   * Adds value to the node of block in the tree and all the nodes above it
+   */
+  private void add (int[] tree, int block, int value) {
+    for (int ii = block + 1; ii <= blockCount; ii += ii & -ii) {
+      tree[ii] += value;
+    }
+  }
+
+  /*
+   * Returns the sum of the values of the first n blocks in the tree
+   */
+  private static int sum (int[] tree, int n) {
+    int sum = 0;
+    for (int ii = n; ii > 0; ii -= ii & -ii) {
+      sum += tree[ii];
+    }
+    return sum;
+  }
+
+  @Override
+  public String toString () {
+    return "TokenTree(" + size + " tokens in " + blockCount + " blocks)";
+  }
+}
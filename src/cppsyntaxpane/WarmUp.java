@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.JEditorPane;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Segment;
+
+/**
+ * Runs the code that lexes, edits and paints a document on a made up C++ text
+ * until the JIT has compiled it, so the first edits of the user don't run
+ * interpreted.  Lexing and editing are done on a thread of the lowest priority;
+ * painting has to be done on the event dispatch thread, and is queued there a
+ * frame at a time so it never holds up the events of the application.
+ * <p>
+ * Kits sharing a pool share its warm-up, as their documents run the same code.
+ */
+final class WarmUp {
+  // the Lexers are run on the text this many times, and the other paths as
+  // often, which is more than the JIT needs to compile them
+  private static final int  LEX_ROUNDS = 30;
+  private static final int  EDITS = 3000;
+  private static final int  QUERIES = 20000;
+  private static final int  PAINTS = 300;
+  // the width and height of the pane painted, in pixels
+  private static final int  WIDTH = 800;
+  private static final int  HEIGHT = 600;
+  // lines of the text, each with a few kinds of Token; # is replaced by a number
+  private static final String[] LINES = {
+    "#include <stdint.h>",
+    "#define LED_# (1 << #)",
+    "/* block comment #",
+    " * spanning lines */",
+    "namespace ns# {",
+    "template <typename T> struct Node# : public Base<T> {",
+    "  static constexpr uint16_t mask = 0x#F & ~0b1010;",
+    "  const char *name = \"node \\\"#\\\"\\n\";",
+    "  char sep = '\\t'; // line comment #",
+    "  double scale = #.25e-3f;",
+    "  virtual int value(int a#, unsigned long b) const override {",
+    "    for (int i = 0; i < a#; ++i) { b += i * #ul; }",
+    "    if (b >= # && a# != b || !(b % 3)) return (int) (b >> 2);",
+    "    asm volatile (\"1: dec %0\\n\\t\" \"brne 1b ; loop #\" : \"+r\" (a#));",
+    "    return a#-- ? b : R\"raw(#)\\n\")raw\"[0];",
+    "  }",
+    "};",
+    "}",
+  };
+
+  private static final Map<LexerPool, CompletableFuture<Void>> started = new WeakHashMap<>();
+
+  private final DefaultSyntaxKit          kit;
+  private final String                    text;
+  private final CompletableFuture<Void>   done = new CompletableFuture<>();
+  private JEditorPane                     pane;
+  private BufferedImage                   image;
+  private int                             paints;
+
+  private WarmUp (DefaultSyntaxKit kit) {
+    this.kit = kit;
+    this.text = corpus(LINES.length * 100);
+  }
+
+  /**
+   * Starts the warm-up of the documents of kit, unless one was started for its
+   * pool, and returns what it completes once it is done
+   */
+  static CompletableFuture<Void> start (DefaultSyntaxKit kit, LexerPool lexers) {
+    synchronized (started) {
+      CompletableFuture<Void> future = started.get(lexers);
+      if (future == null) {
+        WarmUp warmUp = new WarmUp(kit);
+        future = warmUp.done;
+        started.put(lexers, future);
+        Thread thread = new Thread(warmUp::run, "DefaultSyntaxKit warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+      }
+      return future;
+    }
+  }
+
+  /**
+   * Returns the text of lines lines, cycling through LINES
+   */
+  private static String corpus (int lines) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      sb.append(LINES[i % LINES.length].replace("#", Integer.toString(i))).append('\n');
+    }
+    return sb.toString();
+  }
+
+  private void run () {
+    try {
+      lex();
+      edit();
+      SwingUtilities.invokeLater(this::paint);
+    } catch (RuntimeException | BadLocationException ex) {
+      done.completeExceptionally(ex);
+    }
+  }
+
+  /*
+   * Lexes the text with both the push and the pull API of the Lexers
+   */
+  private void lex () {
+    Segment segment = new Segment(text.toCharArray(), 0, text.length());
+    LexerPool[] pools = {kit.getLexers(), kit.getEmbeddedLexers()};
+    TokenSink sink = (type, start, length, pairValue) -> { };
+    for (LexerPool pool : pools) {
+      if (pool == null) {
+        continue;
+      }
+      Lexer lexer = pool.acquire();
+      try {
+        for (int i = 0; i < LEX_ROUNDS; i++) {
+          lexer.parse(segment, 0, sink);
+          lexer.start(segment, 0, null, true, state -> true);
+          while (lexer.next() != null) {
+            lexer.getTokenStart();
+          }
+        }
+      } finally {
+        pool.release(lexer);
+      }
+    }
+  }
+
+  /*
+   * Types into and deletes from a document of the Kit, asking for its Tokens,
+   * pairs, scopes and matches in between as the editor and its components do
+   */
+  private void edit () throws BadLocationException {
+    SyntaxDocument doc = (SyntaxDocument) kit.createDefaultDocument();
+    doc.insertString(0, text, null);
+    int length = doc.getLength();
+    Pattern pattern = Pattern.compile("value");
+    for (int i = 0; i < EDITS; i++) {
+      // a stride through the text, so every kind of line is edited
+      int pos = (int) ((i * 7919L) % length);
+      if ((i & 1) == 0) {
+        doc.insertString(pos, (i % 3 == 0) ? "\"" : "x", null);
+      } else {
+        doc.remove(pos, 1);
+      }
+      length = doc.getLength();
+    }
+    Segment segment = new Segment();
+    for (int i = 0; i < QUERIES; i++) {
+      int pos = (int) ((i * 104729L) % length);
+      Token token = doc.getTokenAt(pos);
+      if (token != null) {
+        doc.getPairFor(token);
+      }
+      doc.getScopeAt(pos);
+      int line = doc.getLineNumberAt(pos);
+      doc.getScopeDepth(line);
+      SyntaxDocument.TokenCursor tok = doc.getTokens(line, pos, Math.min(length, pos + 80));
+      while (tok.next()) {
+        doc.getEmbeddedTokens(tok, segment);
+      }
+    }
+    Matcher matcher = doc.getMatcher(pattern);
+    while (matcher.find()) {
+      matcher.start();
+    }
+    doc.getFolds().foldAll();
+    doc.getFolds().unfoldAll();
+  }
+
+  /*
+   * Paints a screen of the text, a different one each time, then queues the next
+   * paint until there were PAINTS of them
+   */
+  private void paint () {
+    try {
+      if (pane == null) {
+        // a Kit of its own on the same Lexers, as a Kit keeps track of the panes
+        // it is installed on
+        DefaultSyntaxKit paneKit = new DefaultSyntaxKit(kit.getLexers());
+        paneKit.setEmbeddedLexers(kit.getEmbeddedLexers());
+        pane = new JEditorPane();
+        // the views are made for the old document as the Kit is installed
+        pane.setDocument(paneKit.createDefaultDocument());
+        pane.setEditorKit(paneKit);
+        pane.setText(text);
+        pane.setSize(pane.getPreferredSize().width, pane.getPreferredSize().height);
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+      }
+      int y = (int) ((paints * 7919L) % Math.max(1, pane.getHeight() - HEIGHT));
+      Graphics g = image.createGraphics();
+      try {
+        g.translate(0, -y);
+        g.setClip(0, y, WIDTH, HEIGHT);
+        pane.paint(g);
+      } finally {
+        g.dispose();
+      }
+      if (++paints < PAINTS) {
+        SwingUtilities.invokeLater(this::paint);
+      } else {
+        // takes the components and actions of the Kit off the pane
+        pane.setEditorKit(null);
+        pane = null;
+        image = null;
+        done.complete(null);
+      }
+    } catch (RuntimeException ex) {
+      done.completeExceptionally(ex);
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A fixed set of words with the TokenType of each, such as register names and
+ * vendor macros to be shown as TYPE2 or KEYWORD2.  Words are looked up straight
+ * in the text of a document, without making a String of them.
+ * <p>
+ * The words are kept in a perfect hash table: the hash of a word picks a bucket,
+ * and each bucket has a displacement chosen when the table is built so that its
+ * words land in slots no other word uses.  A lookup hashes the characters once
+ * and compares them with the one word in their slot.  Most words of a document
+ * aren't in the dictionary, so before that a bit set of the lengths, first and
+ * last characters of the words turns away most of them without hashing.
+ * <p>
+ * Instances are immutable, and can be shared by any number of threads.
+ */
+public final class WordDictionary {
+  // buckets are filled with this many words on average
+  private static final int BUCKET_SIZE = 4;
+  // displacements tried for a bucket before the table is made larger
+  private static final int MAX_DISPLACEMENT = 1 << 16;
+
+  private final int           size;
+  private final int           maxLength;
+  private final int[]         displacements;
+  private final int           shift;
+  private final long[]        hashes;
+  private final char[][]      words;
+  private final TokenType[]   types;
+  private final long[]        filter;
+  private final int           filterShift;
+
+  /**
+   * Builds a dictionary of the words in the map with their TokenTypes
+   * @throws IllegalArgumentException if a word is empty or its TokenType is null
+   */
+  public WordDictionary (Map<String, TokenType> words) {
+    List<char[]> keys = new ArrayList<>(words.size());
+    List<TokenType> values = new ArrayList<>(words.size());
+    int longest = 0;
+    for (Map.Entry<String, TokenType> entry : words.entrySet()) {
+      if (entry.getKey().isEmpty() || entry.getValue() == null) {
+        throw new IllegalArgumentException("bad word " + entry);
+      }
+      keys.add(entry.getKey().toCharArray());
+      values.add(entry.getValue());
+      longest = Math.max(longest, entry.getKey().length());
+    }
+    size = keys.size();
+    maxLength = longest;
+    displacements = new int[Math.max(1, size / BUCKET_SIZE)];
+    // a table at most half full, made larger if some bucket can't be placed
+    int bits = 1;
+    while ((1 << bits) < 2 * size) {
+      bits++;
+    }
+    for (int tries = 0; !place(keys, bits); tries++) {
+      if (tries == 3) {
+        throw new IllegalStateException("can't hash " + size + " words");
+      }
+      bits++;
+    }
+    shift = 64 - bits;
+    hashes = new long[1 << bits];
+    this.words = new char[1 << bits][];
+    this.types = new TokenType[1 << bits];
+    // 8 bits of the filter a slot, so few of the words that aren't in get past it
+    int filterBits = Math.max(6, bits + 3);
+    filter = new long[1 << (filterBits - 6)];
+    filterShift = 32 - filterBits;
+    for (int i = 0; i < size; i++) {
+      char[] word = keys.get(i);
+      long hash = hash(word, 0, word.length);
+      int slot = slot(hash, displacements[bucket(hash)], shift);
+      hashes[slot] = hash;
+      this.words[slot] = word;
+      this.types[slot] = values.get(i);
+      int bit = filterBit(word, 0, word.length);
+      filter[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /**
+   * Reads a dictionary of word=TYPE lines in the format of {@link Properties},
+   * for example "PORTB = TYPE2"
+   * @throws IllegalArgumentException if a TYPE isn't the name of a TokenType
+   */
+  public static WordDictionary load (Reader reader) throws IOException {
+    Properties properties = new Properties();
+    properties.load(reader);
+    Map<String, TokenType> words = new HashMap<>();
+    for (String word : properties.stringPropertyNames()) {
+      words.put(word, TokenType.valueOf(properties.getProperty(word).trim()));
+    }
+    return new WordDictionary(words);
+  }
+
+  /**
+   * Picks the displacement of each bucket for a table of 2^bits slots, biggest
+   * buckets first while there is the most room
+   * @return false if some bucket couldn't be placed
+   */
+  private boolean place (List<char[]> keys, int bits) {
+    int shift = 64 - bits;
+    List<List<Long>> buckets = new ArrayList<>(displacements.length);
+    for (int i = 0; i < displacements.length; i++) {
+      buckets.add(new ArrayList<>());
+    }
+    for (char[] word : keys) {
+      long hash = hash(word, 0, word.length);
+      buckets.get(bucket(hash)).add(hash);
+    }
+    Integer[] order = new Integer[buckets.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+    boolean[] taken = new boolean[1 << bits];
+    int[] slots = new int[keys.size()];
+    for (int b : order) {
+      List<Long> bucket = buckets.get(b);
+      if (bucket.isEmpty()) {
+        break;
+      }
+      for (int i = 0; i < bucket.size(); i++) {
+        if (bucket.lastIndexOf(bucket.get(i)) != i) {
+          // no displacement can tell these apart
+          throw new IllegalStateException("two words of the dictionary have the same hash");
+        }
+      }
+      int d = 0;
+      Displacement:
+      for (; d < MAX_DISPLACEMENT; d++) {
+        for (int i = 0; i < bucket.size(); i++) {
+          int slot = slot(bucket.get(i), d, shift);
+          if (taken[slot]) {
+            while (--i >= 0) {
+              taken[slots[i]] = false;
+            }
+            continue Displacement;
+          }
+          taken[slot] = true;
+          slots[i] = slot;
+        }
+        break;
+      }
+      if (d == MAX_DISPLACEMENT) {
+        return false;
+      }
+      displacements[b] = d;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of words
+   */
+  public int size () {
+    return size;
+  }
+
+  /**
+   * Returns the TokenType of the word of length characters at start in chars,
+   * or null if it isn't in the dictionary
+   */
+  public TokenType get (char[] chars, int start, int length) {
+    if (length > maxLength || size == 0) {
+      return null;
+    }
+    int bit = filterBit(chars, start, length);
+    if ((filter[bit >>> 6] & 1L << bit) == 0) {
+      return null;
+    }
+    long hash = hash(chars, start, length);
+    int slot = slot(hash, displacements[bucket(hash)], shift);
+    if (hashes[slot] != hash) {
+      return null;
+    }
+    char[] word = words[slot];
+    if (word == null || word.length != length) {
+      return null;
+    }
+    for (int i = 0; i < length; i++) {
+      if (word[i] != chars[start + i]) {
+        return null;
+      }
+    }
+    return types[slot];
+  }
+
+  private int filterBit (char[] chars, int start, int length) {
+    int key = (chars[start] << 16 ^ chars[start + length - 1]) * 31 + length;
+    return (key * 0x9e3779b9) >>> filterShift;
+  }
+
+  /**
+   * Hashes four characters a multiplication, which is what takes the time
+   */
+  private static long hash (char[] chars, int start, int length) {
+    long hash = length;
+    int i = start;
+    int end = start + length;
+    for (; i + 4 <= end; i += 4) {
+      long four = chars[i] | (long) chars[i + 1] << 16 | (long) chars[i + 2] << 32 | (long) chars[i + 3] << 48;
+      hash = (hash + four) * 0x9e3779b97f4a7c15L;
+    }
+    for (; i < end; i++) {
+      hash = (hash + chars[i]) * 0x9e3779b97f4a7c15L;
+    }
+    return hash;
+  }
+
+  private int bucket (long hash) {
+    return (int) (((hash >>> 32) * displacements.length) >>> 32);
+  }
+
+  private static int slot (long hash, int displacement, int shift) {
+    // the finalizer of MurmurHash3, so that each displacement moves the words
+    // of a bucket to unrelated slots
+    long h = hash + displacement * 0xc2b2ae3d27d4eb4fL;
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return (int) ((h ^ (h >>> 33)) >>> shift);
+  }
+
+  @Override
+  public String toString () {
+    return "WordDictionary(" + size + " words)";
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane.actions;
+
+import javax.swing.text.JTextComponent;
+
+import cppsyntaxpane.SyntaxDocument;
+
+/**
+ * This action folds every block between { and } and every block comment
+ */
+@SuppressWarnings({"unused", "serial"})
+public class FoldAllAction extends DefaultSyntaxAction {
+
+  public FoldAllAction () {
+    super("fold-all");
+  }
+
+  @Override
+  public void actionPerformed (JTextComponent target, SyntaxDocument sDoc) {
+    if (sDoc != null) {
+      sDoc.getFolds().foldAll();
+    }
+  }
+}
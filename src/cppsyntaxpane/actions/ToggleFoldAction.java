@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane.actions;
+
+import javax.swing.text.Element;
+import javax.swing.text.JTextComponent;
+
+import cppsyntaxpane.Folds;
+import cppsyntaxpane.SyntaxDocument;
+
+/**
+ * This action folds the region at the caret, or unfolds the folds starting on
+ * its line.  A caret left hidden is moved to the end of the first line of its fold.
+ */
+@SuppressWarnings({"unused", "serial"})
+public class ToggleFoldAction extends DefaultSyntaxAction {
+
+  public ToggleFoldAction () {
+    super("toggle-fold");
+  }
+
+  @Override
+  public void actionPerformed (JTextComponent target, SyntaxDocument sDoc) {
+    if (sDoc != null) {
+      Folds folds = sDoc.getFolds();
+      Element root = sDoc.getDefaultRootElement();
+      int line = root.getElementIndex(target.getCaretPosition());
+      if (folds.toggle(target.getCaretPosition()) && folds.isHidden(line)) {
+        while (folds.isHidden(line)) {
+          line--;
+        }
+        target.setCaretPosition(root.getElement(line).getEndOffset() - 1);
+      }
+    }
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane.components;
+
+import cppsyntaxpane.actions.ActionUtils;
+
+import javax.swing.JEditorPane;
+import javax.swing.event.CaretEvent;
+import javax.swing.event.CaretListener;
+import javax.swing.text.JTextComponent;
+
+import cppsyntaxpane.SyntaxDocument;
+
+/**
+ * This class keeps the caret out of folded text: when it is moved onto a
+ * hidden line, such as by find or goto line, the folds hiding it are unfolded.
+ */
+@SuppressWarnings("unused")
+public class FoldsTracker implements CaretListener, SyntaxComponent {
+  private JTextComponent pane;
+
+  @Override
+  public void caretUpdate (CaretEvent e) {
+    SyntaxDocument doc = ActionUtils.getSyntaxDocument(pane);
+    if (doc != null) {
+      doc.getFolds().reveal(e.getDot());
+    }
+  }
+
+  @Override
+  public void install (JEditorPane editor) {
+    pane = editor;
+    pane.addCaretListener(this);
+  }
+
+  @Override
+  public void deinstall (JEditorPane editor) {
+    pane.removeCaretListener(this);
+  }
+}
@@ -15,6 +15,8 @@
 package cppsyntaxpane.components;
 
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
@@ -30,6 +32,7 @@ import javax.swing.event.DocumentListener;
 import javax.swing.text.Element;
 import javax.swing.text.JTextComponent;
 
+import cppsyntaxpane.Folds;
 import cppsyntaxpane.SyntaxDocument;
 import cppsyntaxpane.SyntaxView;
 import cppsyntaxpane.actions.ActionUtils;
@@ -38,6 +41,9 @@ import cppsyntaxpane.actions.ActionUtils;
  * This class will display line numbers for a related text component. The text
  * component must use the same line height for each line.
  * <p>
+ * The lines hidden by folds are skipped.  Clicking the number of a line
+ * unfolds the folds starting on it, or else folds the first region starting on it.
+ * <p>
  * This class was designed to be used as a component added to the row header
  * of a JScrollPane.
  * <p>
@@ -95,8 +101,22 @@ public class LineNumbersRuler extends JPanel implements CaretListener, DocumentL
       setBorder(BorderFactory.createEmptyBorder(ein.top, curr.left, ein.bottom, curr.right));
     }
     editor.getDocument().addDocumentListener(this);
+    if (editor.getDocument() instanceof SyntaxDocument) {
+      ((SyntaxDocument) editor.getDocument()).addPropertyChangeListener(SyntaxDocument.FOLDS, this);
+    }
     editor.addCaretListener(this);
     editor.addPropertyChangeListener(this);
+    mouseListener = new MouseAdapter() {
+      @Override
+      public void mouseClicked (MouseEvent e) {
+        Folds folds = getFolds();
+        int row = (e.getY() - getInsets().top) / getFontMetrics(getFont()).getHeight();
+        if (folds != null && row >= 0 && row < folds.getRowCount()) {
+          folds.toggleLine(folds.rowToLine(row));
+        }
+      }
+    };
+    addMouseListener(mouseListener);
     JScrollPane sp = getScrollPane(editor);
     if (sp != null) {
       sp.setRowHeaderView(this);
@@ -110,6 +130,9 @@ public class LineNumbersRuler extends JPanel implements CaretListener, DocumentL
     removeMouseListener(mouseListener);
     status = Status.DEINSTALLING;
     editor.getDocument().removeDocumentListener(this);
+    if (editor.getDocument() instanceof SyntaxDocument) {
+      ((SyntaxDocument) editor.getDocument()).removePropertyChangeListener(SyntaxDocument.FOLDS, this);
+    }
     editor.removeCaretListener(this);
     editor.removePropertyChangeListener(this);
     JScrollPane sp = getScrollPane(editor);
@@ -139,6 +162,14 @@ public class LineNumbersRuler extends JPanel implements CaretListener, DocumentL
     }
   }
 
+  /**
+   * Returns the folds of the editor's document, or null if it has none
+   */
+  private Folds getFolds () {
+    SyntaxDocument doc = ActionUtils.getSyntaxDocument(editor);
+    return (doc == null) ? null : doc.getFolds();
+  }
+
   /**
    * Draw the line numbers
    */
@@ -150,14 +181,16 @@ public class LineNumbersRuler extends JPanel implements CaretListener, DocumentL
     int currentLine;
     currentLine = ActionUtils.getLineNumber(editor, editor.getCaretPosition());
     int lh = fontMetrics.getHeight();
-    int maxLines = ActionUtils.getLineCount(editor);
+    Folds folds = getFolds();
+    int maxRows = (folds == null) ? ActionUtils.getLineCount(editor) : folds.getRowCount();
     SyntaxView.setRenderingHits((Graphics2D) g);
     Rectangle clip = g.getClip().getBounds();
-    int topLine = (int) (clip.getY() / lh);
-    int bottomLine = Math.min(maxLines, (int) (clip.getHeight() + lh - 1) / lh + topLine + 1);
-    for (int line = topLine; line < bottomLine; line++) {
+    int topRow = (int) (clip.getY() / lh);
+    int bottomRow = Math.min(maxRows, (int) (clip.getHeight() + lh - 1) / lh + topRow + 1);
+    for (int row = topRow; row < bottomRow; row++) {
+      int line = (folds == null) ? row : folds.rowToLine(row);
       String lineNumber = String.format(numbersFormat, line + 1);
-      int y = line * lh + insets.top;
+      int y = row * lh + insets.top;
       int yt = y + fontMetrics.getAscent();
       if (line == currentLine) {
         g.setColor(lineColor);
@@ -227,14 +260,18 @@ public class LineNumbersRuler extends JPanel implements CaretListener, DocumentL
   @Override
   public void propertyChange (PropertyChangeEvent evt) {
     String prop = evt.getPropertyName();
-    if (prop.equals("document")) {
+    if (prop.equals(SyntaxDocument.FOLDS)) {
+      repaint();
+    } else if (prop.equals("document")) {
       if (evt.getOldValue() instanceof SyntaxDocument) {
         SyntaxDocument syntaxDocument = (SyntaxDocument) evt.getOldValue();
         syntaxDocument.removeDocumentListener(this);
+        syntaxDocument.removePropertyChangeListener(SyntaxDocument.FOLDS, this);
       }
       if (evt.getNewValue() instanceof SyntaxDocument && status.equals(Status.INSTALLING)) {
         SyntaxDocument syntaxDocument = (SyntaxDocument) evt.getNewValue();
         syntaxDocument.addDocumentListener(this);
+        syntaxDocument.addPropertyChangeListener(SyntaxDocument.FOLDS, this);
         setPreferredWidth(false);
         repaint();
       }
@@ -25,19 +25,29 @@ import javax.swing.text.JTextComponent;
 
 import cppsyntaxpane.SyntaxDocument;
 import cppsyntaxpane.Token;
+import cppsyntaxpane.TokenChangeEvent;
+import cppsyntaxpane.TokenChangeListener;
 
 /**
  * This class highlights any pairs of the given language.  Pairs are defined
  * with the Token.pairValue.
+ * <p>
+ * The marks are made again when the caret moves, and when the Tokens from the
+ * caret up to the other Token of its pair change, such as when they are lexed
+ * in the background.
  *
  * @author Ayman Al-Sairafi
  */
 @SuppressWarnings("unused")
-public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChangeListener {
+public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChangeListener, TokenChangeListener {
   private static Color markerColor = new Color(0xFFBB77);
   private JTextComponent pane;
+  private SyntaxDocument document;
   private Markers.SimpleMarker marker;
   private Status status;
+  // the text the marks were found from, from the caret up to the other Token of its pair
+  private int markStart;
+  private int markEnd = -1;
 
   public PairsMarker () {
     this.marker = new Markers.SimpleMarker(markerColor);
@@ -45,8 +55,23 @@ public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChan
 
   @Override
   public void caretUpdate (CaretEvent e) {
+    mark(e.getDot());
+  }
+
+  @Override
+  public void tokensChanged (TokenChangeEvent e) {
+    if (e.getStart() <= markEnd && e.getEnd() >= markStart) {
+      mark(pane.getCaretPosition());
+    }
+  }
+
+  /**
+   * Marks the pair the Token at pos is part of
+   */
+  private void mark (int pos) {
     removeMarkers();
-    int pos = e.getDot();
+    markStart = pos;
+    markEnd = pos;
     SyntaxDocument doc = ActionUtils.getSyntaxDocument(pane);
     if (doc != null) {
       Token token = doc.getTokenAt(pos);
@@ -55,6 +80,12 @@ public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChan
         Token other = doc.getPairFor(token);
         if (other != null) {
           Markers.markToken(pane, other, marker);
+          markStart = Math.min(token.start, other.start);
+          markEnd = Math.max(token.end(), other.end());
+        } else {
+          // a Token anywhere after or before it may close the pair
+          markStart = (token.pairValue > 0) ? token.start : 0;
+          markEnd = (token.pairValue > 0) ? Integer.MAX_VALUE : token.end();
         }
       }
     }
@@ -72,6 +103,8 @@ public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChan
   public void install (JEditorPane editor) {
     pane = editor;
     pane.addCaretListener(this);
+    pane.addPropertyChangeListener("document", this);
+    listenTo(ActionUtils.getSyntaxDocument(pane));
     status = Status.INSTALLING;
   }
 
@@ -79,15 +112,32 @@ public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChan
   public void deinstall (JEditorPane editor) {
     status = Status.DEINSTALLING;
     pane.removeCaretListener(this);
+    pane.removePropertyChangeListener("document", this);
+    listenTo(null);
     removeMarkers();
   }
 
+  /**
+   * Listens for the Tokens of doc, instead of those of the document before
+   */
+  private void listenTo (SyntaxDocument doc) {
+    if (document != null) {
+      document.removeTokenChangeListener(this);
+    }
+    document = doc;
+    if (document != null) {
+      document.addTokenChangeListener(this);
+    }
+  }
+
   @Override
   public void propertyChange (PropertyChangeEvent evt) {
     if (evt.getPropertyName().equals("document")) {
       pane.removeCaretListener(this);
+      listenTo(null);
       if (status.equals(Status.INSTALLING)) {
         pane.addCaretListener(this);
+        listenTo(ActionUtils.getSyntaxDocument(pane));
         removeMarkers();
       }
     }
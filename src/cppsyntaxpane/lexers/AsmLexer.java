@@ -0,0 +1,295 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane.lexers;
+
+import cppsyntaxpane.Lexer;
+import cppsyntaxpane.LexerState;
+import cppsyntaxpane.TokenSink;
+import cppsyntaxpane.TokenType;
+
+import javax.swing.text.Segment;
+
+/**
+ * A Lexer for the GNU assembly of AVR inline asm statements, as it is written in
+ * the template strings of a C++ asm statement.  It reads the text between the
+ * quotes, so the escapes of the string, such as the "\n\t" separating the
+ * instructions, are Tokens of their own.
+ * <p>
+ * The first word of an instruction is its mnemonic, shown as a KEYWORD, and
+ * directives like .word are KEYWORD2.  Registers are TYPE2, the %0 and %[name]
+ * operands of the asm statement are TYPE, and ';' starts a comment running to
+ * the end of the instruction.  A word followed by ':' is a label, after which
+ * the instruction goes on.
+ */
+public final class AsmLexer implements Lexer {
+  // states of a checkpoint or a stop, 0 is a Token boundary at the start of an
+  // instruction.  Tokens interrupted by the end of a segment are scanned again.
+  private static final int RESCAN = 1;
+  private static final int OPERANDS = 2;        // after the mnemonic of an instruction
+
+  private char[]            buffer;
+  private int               offset;             // document offset of buffer[0]
+  private int               position;           // where the next Token is looked for in buffer
+  private int               end;                // end of the text in buffer
+  private boolean           last;
+  private boolean           stopped;
+  private final LexerState  stop = new LexerState();
+  // set once the mnemonic of the current instruction was seen
+  private boolean           operands;
+  // document offset of the last line start that was reported
+  private CheckpointListener listener;
+  private int               lastLine;
+  private int               tokenStart;
+  private int               tokenLength;
+
+  public void parse (Segment segment, int ofst, TokenSink sink) {
+    start(segment, ofst, null, true, null);
+    for (TokenType type = next(); type != null; type = next()) {
+      sink.token(type, tokenStart, tokenLength, (byte) 0);
+    }
+  }
+
+  public void start (Segment segment, int ofst, LexerState state, boolean last, CheckpointListener listener) {
+    buffer = segment.array;
+    offset = ofst - segment.offset;
+    end = segment.offset + segment.count;
+    this.last = last;
+    this.listener = listener;
+    stopped = false;
+    if (state == null) {
+      position = segment.offset;
+      lastLine = ofst;
+      operands = false;
+    } else {
+      position = state.start - offset;
+      lastLine = state.position;
+      operands = (state.state & OPERANDS) != 0;
+    }
+  }
+
+  public TokenType next () {
+    TokenType type = null;
+    while (type == null && !stopped) {
+      type = scan();
+    }
+    return type;
+  }
+
+  public int getTokenStart () {
+    return tokenStart;
+  }
+
+  public int getTokenLength () {
+    return tokenLength;
+  }
+
+  public byte getPairValue () {
+    return 0;
+  }
+
+  public void getState (LexerState state) {
+    if (stopped) {
+      state.set(stop.state, stop.position, stop.start, stop.marked);
+    } else {
+      int pos = position + offset;
+      state.set(operands ? OPERANDS : 0, pos, pos, pos);
+    }
+  }
+
+  /**
+   * Scans up to the next Token, or returns null if it stopped
+   */
+  private TokenType scan () {
+    char[] buf = buffer;
+    int end = this.end;
+    int p = position;
+    while (true) {
+      if (listener != null && p + offset > lastLine && buf[p - 1] == '\n' &&
+          !checkpoint(p)) {
+        return halt();
+      }
+      if (p == end) {
+        position = p;
+        return suspend(0, p, p);
+      }
+      char c = buf[p];
+      int q = p + 1;
+      if (c == '\n') {
+        operands = false;
+        p = q;
+      } else if (c <= ' ' || c >= 128) {
+        p = q;
+      } else if (c == '\\') {
+        // an escape of the string, "\n" ends the instruction
+        if (q == end) {
+          return last ? token(TokenType.OPERATOR, p, q) : suspend(RESCAN, q, p);
+        }
+        if (buf[q] == 'n') {
+          operands = false;
+        }
+        return token(TokenType.STRING, p, q + 1);
+      } else if (c == ';') {
+        while (q < end && buf[q] != '\n' && !(buf[q] == '\\' && q + 1 < end && buf[q + 1] == 'n')) {
+          q++;
+        }
+        return finish(TokenType.COMMENT, p, q);
+      } else if (c == '%') {
+        return operand(buf, p, q);
+      } else if (c >= '0' && c <= '9') {
+        // numbers, and the 1b and 1f references to local labels
+        while (q < end && isWordPart(buf[q])) {
+          q++;
+        }
+        return finish(TokenType.NUMBER, p, q);
+      } else if (isWordStart(c)) {
+        return word(buf, p, q);
+      } else {
+        return token(TokenType.OPERATOR, p, q);
+      }
+    }
+  }
+
+  /**
+   * Scans the word at start: a label, the mnemonic or directive of an
+   * instruction, a register or a symbol
+   */
+  private TokenType word (char[] buf, int start, int q) {
+    while (q < end && isWordPart(buf[q])) {
+      q++;
+    }
+    if (q == end && !last) {
+      return suspend(RESCAN, q, start);
+    }
+    if (q == start + 1 && buf[start] == '.') {
+      // the location counter
+      return token(TokenType.OPERATOR, start, q);
+    }
+    if (q < end && buf[q] == ':') {
+      return token(TokenType.IDENTIFIER, start, q);
+    }
+    if (!operands) {
+      operands = true;
+      return token((buf[start] == '.') ? TokenType.KEYWORD2 : TokenType.KEYWORD, start, q);
+    }
+    return token(isRegister(buf, start, q - start) ? TokenType.TYPE2 : TokenType.IDENTIFIER, start, q);
+  }
+
+  /**
+   * Scans an operand of the asm statement from the '%' at start: an operand
+   * number or [name] with the letters of a modifier before it, or one of %=
+   * and %~
+   */
+  private TokenType operand (char[] buf, int start, int q) {
+    if (q < end && (buf[q] == '=' || buf[q] == '~' || buf[q] == '%')) {
+      return token(TokenType.TYPE, start, q + 1);
+    }
+    while (q < end && isLetter(buf[q])) {
+      q++;
+    }
+    if (q < end && buf[q] == '[') {
+      do {
+        q++;
+      } while (q < end && buf[q] != ']' && isWordPart(buf[q]));
+      if (q < end && buf[q] == ']') {
+        q++;
+      }
+    } else {
+      while (q < end && buf[q] >= '0' && buf[q] <= '9') {
+        q++;
+      }
+    }
+    return finish(TokenType.TYPE, start, q);
+  }
+
+  /**
+   * Returns true for r0 to r31 and the X, Y and Z pointer registers
+   */
+  private static boolean isRegister (char[] buf, int start, int length) {
+    char c = (char) (buf[start] | 0x20);
+    if (length == 1) {
+      return c == 'x' || c == 'y' || c == 'z';
+    }
+    if (c != 'r' || length > 3) {
+      return false;
+    }
+    int n = 0;
+    for (int i = start + 1; i < start + length; i++) {
+      char d = buf[i];
+      if (d < '0' || d > '9' || (n == 0 && i > start + 1)) {
+        return false;
+      }
+      n = 10 * n + d - '0';
+    }
+    return n < 32;
+  }
+
+  private static boolean isLetter (char c) {
+    c |= 0x20;
+    return c >= 'a' && c <= 'z';
+  }
+
+  private static boolean isWordStart (char c) {
+    return isLetter(c) || c == '_' || c == '.';
+  }
+
+  private static boolean isWordPart (char c) {
+    return isWordStart(c) || (c >= '0' && c <= '9') || c == '$';
+  }
+
+  /**
+   * Records the Token from start up to end in buffer, unless it runs into the
+   * end of a segment that isn't the last, and has to be scanned again
+   */
+  private TokenType finish (TokenType type, int start, int end) {
+    if (end == this.end && !last) {
+      return suspend(RESCAN, end, start);
+    }
+    return token(type, start, end);
+  }
+
+  /**
+   * Records the Token from start up to end in buffer, and carries on after it
+   */
+  private TokenType token (TokenType type, int start, int end) {
+    tokenStart = start + offset;
+    tokenLength = end - start;
+    position = end;
+    return type;
+  }
+
+  /**
+   * Ends the scan, letting go of the text so an idle Lexer doesn't keep it
+   */
+  private TokenType halt () {
+    stopped = true;
+    buffer = null;
+    return null;
+  }
+
+  /**
+   * Stops in state, about to look at the character at pos, to go on from start
+   */
+  private TokenType suspend (int state, int pos, int start) {
+    stop.set(state | (operands ? OPERANDS : 0), pos + offset, start + offset, start + offset);
+    return halt();
+  }
+
+  /**
+   * Reports the checkpoint of the first look at the line start at pos
+   * @return false if the listener asked to stop
+   */
+  private boolean checkpoint (int pos) {
+    lastLine = pos + offset;
+    stop.set(operands ? OPERANDS : 0, pos + offset, pos + offset, pos + offset);
+    return listener.checkpoint(stop);
+  }
+}
@@ -25,20 +25,21 @@ package cppsyntaxpane.lexers;
 
 
 import cppsyntaxpane.Lexer;
-import cppsyntaxpane.Token;
+import cppsyntaxpane.LexerState;
+import cppsyntaxpane.TokenSink;
 import cppsyntaxpane.TokenType;
+import cppsyntaxpane.WordDictionary;
 
 import javax.swing.text.Segment;
-import java.io.CharArrayReader;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 public final class CppLexer implements Lexer {
   private static final int  EOF = -1;               //  denotes the end of file
-  private static final int  BUFFERSIZE = 16384;     // initial size of the lookahead buffer
   private static final int  INITIAL = 0;            // lexical states
-  private int               offset;
+  private int               offset;               // document offset of lexBuffer[0]
+  private int               tokenStart;
+  private int               tokenLength;
+  private byte              tokenPair;
 
   /**
    * LEXSTATE[l] is the state in the DFA for the lexical state l
@@ -51,36 +52,104 @@ public final class CppLexer implements Lexer {
   };
 
   /**
-   * Create and return a Token of given type.  start is obtained from {@link #getCharacters()}
+   * Records a Token of given type.  start is obtained from lexStartRead
    * and length from {@link #length()}
-   * offset is added to start
+   * offset is added to start.  An identifier or type found in words
+   * gets the TokenType it has there
    */
-  protected Token token (TokenType type) {
-    return new Token(type, getCharacters() + offset, length());
+  protected TokenType token (TokenType type) {
+    if (words != null && (type == TokenType.IDENTIFIER || type == TokenType.TYPE)) {
+      TokenType word = words.get(lexBuffer, lexStartRead, length());
+      if (word != null) {
+        type = word;
+      }
+    }
+    return token(type, 0);
   }
 
   /**
-   * Create and return a Token of given type and pairValue.
-   * start is obtained from {@link #getCharacters()}
+   * Records a Token of given type and pairValue.
+   * start is obtained from lexStartRead
    * and length from {@link #length()}
    * offset is added to start
    */
-  protected Token token (TokenType type, int pairValue) {
-    return new Token(type, getCharacters() + offset, length(), (byte) pairValue);
+  protected TokenType token (TokenType type, int pairValue) {
+    tokenStart = lexStartRead + offset;
+    tokenLength = length();
+    tokenPair = (byte) pairValue;
+    return type;
   }
 
-  public void parse (Segment segment, int ofst, List<Token> tokens) {
-    try {
-      resetInput(new CharArrayReader(segment.array, segment.offset, segment.count));
-      this.offset = ofst;
-      for (Token tok = lexScan(); tok != null; tok = lexScan()) {
-        tokens.add(tok);
-      }
-    } catch (IOException ex) {
-      ex.printStackTrace();
+  public void parse (Segment segment, int ofst, TokenSink sink) {
+    start(segment, ofst, null, true, null);
+    for (TokenType type = next(); type != null; type = next()) {
+      sink.token(type, tokenStart, tokenLength, tokenPair);
+    }
+  }
+
+  public void start (Segment segment, int ofst, LexerState state, boolean last, CheckpointListener listener) {
+    // scan the segment's array in place
+    this.offset = ofst - segment.offset;
+    resetInput(segment.array, ((state == null) ? ofst : state.start) - offset, segment.offset + segment.count);
+    this.last = last;
+    this.listener = listener;
+    lastLine = (state == null) ? ofst : state.position;
+    if (state != null && state.position > state.start) {
+      // pick up the pending match where it was interrupted
+      lexicalState = state.state >>> 24;
+      resumeState = state.state & 0xfff;
+      resumeAction = ((state.state >>> 12) & 0xfff) - 1;
+      lexCurrentPos = state.position - offset;
+      lexMarkedPos = state.marked - offset;
+      resuming = true;
+    }
+  }
+
+  public TokenType next () {
+    if (stopped) {
+      return null;
+    }
+    return lexScan();
+  }
+
+  public int getTokenStart () {
+    return tokenStart;
+  }
+
+  public int getTokenLength () {
+    return tokenLength;
+  }
+
+  public byte getPairValue () {
+    return tokenPair;
+  }
+
+  public void getState (LexerState state) {
+    if (stopped) {
+      state.set(stop.state, stop.position, stop.start, stop.marked);
+    } else {
+      int pos = lexMarkedPos + offset;
+      state.set(lexicalState << 24, pos, pos, pos);
     }
   }
 
+  /**
+   * Ends the scan, letting go of the text so an idle Lexer doesn't keep it
+   */
+  private TokenType halt () {
+    stopped = true;
+    lexBuffer = null;
+    return null;
+  }
+
+  /**
+   * Records the state of the DFA about to look at currentPosition in stop
+   */
+  private void saveState (int dfaState, int action, int currentPosition, int markedPosition) {
+    stop.set(lexicalState << 24 | (action + 1) << 12 | dfaState, currentPosition + offset,
+             lexStartRead + offset, markedPosition + offset);
+  }
+
   /**
    * Translates characters to character classes
    */
@@ -212,16 +281,28 @@ public final class CppLexer implements Lexer {
    * @return the unpacked character translation table
    */
   private static char[] unpackCMap() {
-    StringBuilder buf = new StringBuilder();
+    char[] map = new char[unpackedLength(CMAP_PACKED)];
     int ii = 0;  /* index in packed string  */
-    while (ii < CppLexer.CMAP_PACKED.length()) {
-      int count = CppLexer.CMAP_PACKED.charAt(ii++);
-      char value = CppLexer.CMAP_PACKED.charAt(ii++);
-      do {
-        buf.append(value);
-      } while (--count > 0);
+    int jj = 0;  /* index in unpacked array */
+    while (ii < CMAP_PACKED.length()) {
+      int count = CMAP_PACKED.charAt(ii++);
+      char value = CMAP_PACKED.charAt(ii++);
+      Arrays.fill(map, jj, jj + count, value);
+      jj += count;
+    }
+    return map;
+  }
+
+  /**
+   * Returns the number of values in a run-length packed string of count, value
+   * pairs, so it can be unpacked straight into an array of the right size.
+   */
+  private static int unpackedLength (String str) {
+    int length = 0;
+    for (int ii = 0; ii < str.length(); ii += 2) {
+      length += str.charAt(ii);
     }
-    return buf.toString().toCharArray();
+    return length;
   }
 
 
@@ -241,17 +322,17 @@ public final class CppLexer implements Lexer {
   private static final int[] ACTION = unPackString(ACTION_PACKED);
 
   private static int[] unPackString (String str) {
-    List<Integer> result = new ArrayList<>();
+    int[] result = new int[unpackedLength(str)];
     int ii = 0;       /* index in packed string  */
+    int jj = 0;       /* index in unpacked array */
     int kk = str.length();
     while (ii < kk) {
       int count = str.charAt(ii++);
       int value = str.charAt(ii++);
-      do {
-        result.add(value);
-      } while (--count > 0);
+      Arrays.fill(result, jj, jj + count, value);
+      jj += count;
     }
-    return result.stream().mapToInt(i->i).toArray();
+    return result;
   }
 
   /**
@@ -299,15 +380,15 @@ public final class CppLexer implements Lexer {
   private static final int[] ROWMAP = unpackRowMap();
 
   private static int[] unpackRowMap() {
-    List<Integer> result = new ArrayList<>();
+    int[] result = new int[ROWMAP_PACKED.length() / 2];
     int ii = 0;  /* index in packed string  */
+    int jj = 0;  /* index in unpacked array */
     int kk = ROWMAP_PACKED.length();
     while (ii < kk) {
       int high = ROWMAP_PACKED.charAt(ii++) << 16;
-      result.add(high | ROWMAP_PACKED.charAt(ii++));
-
+      result[jj++] = high | ROWMAP_PACKED.charAt(ii++);
     }
-    return result.stream().mapToInt(i->i).toArray();
+    return result;
   }
 
   /**
@@ -641,18 +722,18 @@ public final class CppLexer implements Lexer {
   private static final int[] TRANS = unpackTrans();
 
   private static int[] unpackTrans() {
-    List<Integer> result = new ArrayList<>();
+    int[] result = new int[unpackedLength(TRANS_PACKED)];
     int ii = 0;       /* index in packed string  */
+    int jj = 0;       /* index in unpacked array */
     int kk = TRANS_PACKED.length();
     while (ii < kk) {
       int count = TRANS_PACKED.charAt(ii++);
       int value = TRANS_PACKED.charAt(ii++);
       value--;
-      do {
-        result.add(value);
-      } while (--count > 0);
+      Arrays.fill(result, jj, jj + count, value);
+      jj += count;
     }
-    return result.stream().mapToInt(i->i).toArray();
+    return result;
   }
 
 
@@ -680,9 +761,99 @@ public final class CppLexer implements Lexer {
   private static final int[] ATTRIBUTE = unPackString(ATTRIBUTE_PACKED);
 
   /**
-   * the input device
+   * Characters below 128, nearly all of the text of C and C++ sources, skip
+   * CMAP and ROWMAP: ASCII_TRANS[state << 7 | c] is TRANS[ROWMAP[state] + CMAP[c]]
    */
-  private java.io.Reader reader;
+  private static final short[] ASCII_TRANS = unpackAsciiTrans();
+
+  /**
+   * LOOPS[2 * state] and LOOPS[2 * state + 1] are the characters below 64 and
+   * from 64 to 127, as bit sets, that leave the DFA in state, like the letters and
+   * digits of an identifier or the text of a comment.  Runs of them are skipped
+   * without going through the tables.  '\n' is left out so each line start is
+   * still looked at.  The states that have any are marked with LOOP in ATTRIBUTE,
+   * and with WIDE_LOOP as well if all characters from 128 on leave them in state
+   * too, as in comments and literals.
+   */
+  private static final long[] LOOPS = unpackLoops();
+  private static final int LOOP = 0x100;
+  private static final int WIDE_LOOP = 0x200;
+
+  /**
+   * Blanks other than '\n', as a bit set of characters below 64.  The initial
+   * state matches them one at a time and makes no Token of them, so a run of
+   * them, like the indentation of a line, is skipped before a match starts.
+   */
+  private static final long BLANKS = unpackBlanks();
+
+  /*
+   * The tables are read through locals below: until the class is initialized,
+   * each access to a static field of it takes the interpreter's slow path,
+   * which made these loops most of the time the class took to load.
+   */
+  private static short[] unpackAsciiTrans () {
+    int[] rowMap = ROWMAP;
+    int[] trans = TRANS;
+    char[] cmap = CMAP;
+    short[] result = new short[rowMap.length << 7];
+    for (int state = 0; state < rowMap.length; state++) {
+      for (int c = 0; c < 128; c++) {
+        result[state << 7 | c] = (short) trans[rowMap[state] + cmap[c]];
+      }
+    }
+    return result;
+  }
+
+  private static long[] unpackLoops () {
+    int[] rowMap = ROWMAP;
+    int[] trans = TRANS;
+    short[] asciiTrans = ASCII_TRANS;
+    int[] attribute = ATTRIBUTE;
+    // the character classes of the characters from 128 on, from the runs of
+    // count, value pairs CMAP was unpacked from rather than its 65536 entries
+    String packed = CMAP_PACKED;
+    int classes = 0;
+    for (int ii = 1; ii < packed.length(); ii += 2) {
+      classes = Math.max(classes, packed.charAt(ii) + 1);
+    }
+    boolean[] wide = new boolean[classes];
+    for (int ii = 0, end = 0; ii < packed.length(); ii += 2) {
+      end += packed.charAt(ii);
+      if (end > 128) {
+        wide[packed.charAt(ii + 1)] = true;
+      }
+    }
+    long[] result = new long[2 * rowMap.length];
+    for (int state = 0; state < rowMap.length; state++) {
+      for (int c = 0; c < 128; c++) {
+        if (c != '\n' && asciiTrans[state << 7 | c] == state) {
+          result[2 * state + (c >> 6)] |= 1L << c;
+          attribute[state] |= LOOP;
+        }
+      }
+      boolean wideLoop = (attribute[state] & LOOP) != 0;
+      for (int k = 0; k < wide.length && wideLoop; k++) {
+        wideLoop = !wide[k] || trans[rowMap[state] + k] == state;
+      }
+      if (wideLoop) {
+        attribute[state] |= WIDE_LOOP;
+      }
+    }
+    return result;
+  }
+
+  private static long unpackBlanks () {
+    short[] asciiTrans = ASCII_TRANS;
+    int initial = LEXSTATE[INITIAL];
+    int blank = asciiTrans[initial << 7 | ' '];
+    long result = 0;
+    for (int c = 0; c < 64; c++) {
+      if (c != '\n' && asciiTrans[initial << 7 | c] == blank) {
+        result |= 1L << c;
+      }
+    }
+    return result;
+  }
 
   /**
    * the current lexical state
@@ -690,10 +861,9 @@ public final class CppLexer implements Lexer {
   private int lexicalState = INITIAL;
 
   /**
-   * this buffer contains the current text to be matched and is
-   * the source of the yytext() string
+   * the text to be matched, this is the array of the Segment being lexed
    */
-  private char[] lexBuffer = new char[BUFFERSIZE];
+  private char[] lexBuffer;
 
   /**
    * the textposition at the last accepting state
@@ -711,29 +881,53 @@ public final class CppLexer implements Lexer {
   private int lexStartRead;
 
   /**
-   * endRead marks the last character in the buffer, that has been read
-   * from input
+   * endRead marks the end of the input in the buffer
    */
   private int lexEndRead;
 
   /**
-   * the number of characters up to the start of the matched text
+   * false if the text continues past the end of the input, so the scanner must
+   * stop rather than treat the end of input as EOF
    */
-  private int characters;
+  private boolean last;
 
   /**
-   * atEOF == true <=> the scanner is at the EOF
+   * true once the scanner stopped at the end of input, at EOF or at a
+   * checkpoint, with its state saved in stop
    */
-  private boolean atEOF;
+  private boolean stopped;
+  private final LexerState stop = new LexerState();
+
+  /**
+   * DFA state and action to continue the first match with after resuming
+   */
+  private boolean resuming;
+  private int resumeState;
+  private int resumeAction;
+
+  /**
+   * receives the checkpoints at line starts, lexLine is the position in the
+   * buffer of the next line start to report (or -1) and lastLine the document
+   * offset of the last line start that was reported
+   */
+  private CheckpointListener listener;
+  private int lexLine;
+  private int lastLine;
 
   /* user code: */
 
+  private final WordDictionary words;
+
   public CppLexer () {
-    super();
+    this(null);
   }
 
-  private int getCharacters () {
-    return characters;
+  /**
+   * Makes a Lexer that gives the identifiers and types found in words the
+   * TokenType they have there
+   */
+  public CppLexer (WordDictionary words) {
+    this.words = words;
   }
 
   private static final byte PARAN = 1;
@@ -741,72 +935,16 @@ public final class CppLexer implements Lexer {
   private static final byte CURLY = 3;
 
   /**
-   * Refills the input buffer.
-   *
-   * @return <code>false</code>, iff there was new input.
-   * @throws java.io.IOException if any I/O-Error occurs
-   */
-  private boolean refill () throws java.io.IOException {
-    /* first: make room (if you can) */
-    if (lexStartRead > 0) {
-      System.arraycopy(lexBuffer, lexStartRead,
-          lexBuffer, 0,
-        lexEndRead - lexStartRead);
-
-      /* translate stored positions */
-      lexEndRead -= lexStartRead;
-      lexCurrentPos -= lexStartRead;
-      lexMarkedPos -= lexStartRead;
-      lexStartRead = 0;
-    }
-    /* is the buffer big enough? */
-    if (lexCurrentPos >= lexBuffer.length) {
-      /* if not: blow it up */
-      char[] newBuffer = new char[lexCurrentPos * 2];
-      System.arraycopy(lexBuffer, 0, newBuffer, 0, lexBuffer.length);
-      lexBuffer = newBuffer;
-    }
-    /* finally: fill the buffer with new input */
-    int numRead = reader.read(lexBuffer, lexEndRead, lexBuffer.length - lexEndRead);
-    if (numRead > 0) {
-      lexEndRead += numRead;
-      return false;
-    }
-    // unlikely but not impossible: read 0 characters, but not at end of stream
-    if (numRead == 0) {
-      int c = reader.read();
-      if (c == -1) {
-        return true;
-      } else {
-        lexBuffer[lexEndRead++] = (char) c;
-        return false;
-      }
-    }
-    // numRead < 0
-    return true;
-  }
-
-
-  /**
-   * Resets the scanner to read from a new input stream.
-   * Does not close the old reader.
-   * <p>
-   * All internal variables are reset, the old input stream
-   * <b>cannot</b> be reused (internal buffer is discarded and lost).
-   * Lexical state is set to <tt>ZZ_INITIAL</tt>.
-   *
-   * @param reader the new input stream
-   */
-  private void resetInput (java.io.Reader reader) {
-    this.reader = reader;
-    atEOF = false;
-    /*
-     * denotes if the user-EOF-code has already been executed
-     */
-    lexEndRead = lexStartRead = 0;
-    lexCurrentPos = lexMarkedPos = 0;
-    characters = 0;
+   * Resets the scanner to read buffer from start up to end.
+   * Lexical state is set to <tt>INITIAL</tt>.
+   */
+  private void resetInput (char[] buffer, int start, int end) {
+    lexBuffer = buffer;
+    lexEndRead = end;
+    lexStartRead = lexCurrentPos = lexMarkedPos = start;
     lexicalState = INITIAL;
+    stopped = resuming = false;
+    lexLine = -1;
   }
 
 
@@ -846,10 +984,9 @@ public final class CppLexer implements Lexer {
    * Resumes scanning until the next regular expression is matched,
    * the end of input is encountered or an I/O-Error occurs.
    *
-   * @return the next token
-   * @throws java.io.IOException if any I/O-Error occurs
+   * @return the type of the next token
    */
-  private Token lexScan () throws java.io.IOException {
+  private TokenType lexScan () {
     int input;
     int action;
     // cached fields:
@@ -859,39 +996,53 @@ public final class CppLexer implements Lexer {
     char[] lexBufferTmp = lexBuffer;
     while (true) {
       markedPosition = lexMarkedPos;
-      characters += markedPosition - lexStartRead;
-      action = -1;
-      currentPosition = lexCurrentPos = lexStartRead = markedPosition;
       /*
        * the current state of the DFA
        */
-      int state = LEXSTATE[lexicalState];
+      int state;
+      if (resuming) {
+        resuming = false;
+        action = resumeAction;
+        currentPosition = lexCurrentPos;
+        state = resumeState;
+      } else {
+        action = -1;
+        if (markedPosition != lexLine) {
+          int c;
+          while (markedPosition < endRead && (c = lexBufferTmp[markedPosition]) < 64 && ((BLANKS >>> c) & 1) != 0) {
+            markedPosition++;
+          }
+          lexMarkedPos = markedPosition;
+        }
+        currentPosition = lexCurrentPos = lexStartRead = markedPosition;
+        state = LEXSTATE[lexicalState];
+      }
       ForAction:
       {
         while (true) {
+          if (currentPosition == lexLine) {
+            // first look at the start of a line
+            lexLine = -1;
+            saveState(state, action, currentPosition, markedPosition);
+            if (!listener.checkpoint(stop)) {
+              return halt();
+            }
+          }
           if (currentPosition < endRead) {
             input = lexBufferTmp[currentPosition++];
-          } else if (atEOF) {
+          } else if (last) {
             input = EOF;
             break ForAction;
           } else {
-            // store back cached positions
-            lexCurrentPos = currentPosition;
-            lexMarkedPos = markedPosition;
-            boolean eof = refill();
-            // get translated positions and possibly new buffer
-            currentPosition = lexCurrentPos;
-            markedPosition = lexMarkedPos;
-            lexBufferTmp = lexBuffer;
-            endRead = lexEndRead;
-            if (eof) {
-              input = EOF;
-              break ForAction;
-            } else {
-              input = lexBufferTmp[currentPosition++];
-            }
+            // the text goes on, so wait to be resumed with more of it
+            saveState(state, action, currentPosition, markedPosition);
+            return halt();
+          }
+          if (input == '\n' && listener != null && currentPosition + offset > lastLine) {
+            lexLine = currentPosition;
+            lastLine = currentPosition + offset;
           }
-          int next = TRANS[ROWMAP[state] + CMAP[input]];
+          int next = (input < 128) ? ASCII_TRANS[state << 7 | input] : TRANS[ROWMAP[state] + CMAP[input]];
           if (next == -1) {
             break ForAction;
           }
@@ -904,6 +1055,21 @@ public final class CppLexer implements Lexer {
               break ForAction;
             }
           }
+          if ((attributes & LOOP) != 0 && currentPosition != lexLine) {
+            // skip the characters that leave the DFA in state
+            long low = LOOPS[2 * state];
+            long high = LOOPS[2 * state + 1];
+            while (currentPosition < endRead) {
+              int c = lexBufferTmp[currentPosition];
+              if ((c < 128) ? ((((c < 64) ? low : high) >>> c) & 1) == 0 : (attributes & WIDE_LOOP) == 0) {
+                break;
+              }
+              currentPosition++;
+            }
+            if ((attributes & 1) == 1) {
+              markedPosition = currentPosition;
+            }
+          }
         }
       }
       // store back cached position
@@ -989,8 +1155,8 @@ public final class CppLexer implements Lexer {
         break;
       default:
         if (input == EOF && lexStartRead == lexCurrentPos) {
-          atEOF = true;
-          return null;
+          stop.set(lexicalState << 24, lexStartRead + offset, lexStartRead + offset, lexStartRead + offset);
+          return halt();
         } else {
           scanError();
         }
@@ -0,0 +1,932 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cppsyntaxpane.lexers;
+
+import cppsyntaxpane.Lexer;
+import cppsyntaxpane.LexerState;
+import cppsyntaxpane.TokenSink;
+import cppsyntaxpane.TokenType;
+import cppsyntaxpane.WordDictionary;
+
+import javax.swing.text.Segment;
+import java.util.Arrays;
+
+/**
+ * A C++ Lexer coded by hand, which gives the same Tokens as {@link CppLexer}
+ * without going through the DFA tables.  The first character of a Token picks
+ * the code that scans the rest of it, and keywords, types and preprocessor
+ * directives are looked up in perfect hash tables once a whole word is read.
+ * <p>
+ * Block comments, line comments and strings can be resumed where they were
+ * interrupted.  Any other Token that runs into the end of a segment is scanned
+ * again from its start when the Lexer is resumed.
+ */
+public final class DirectCppLexer implements Lexer {
+  private static final byte PARAN = 1;
+  private static final byte BRACKET = 2;
+  private static final byte CURLY = 3;
+
+  // states of a checkpoint or a stop in the middle of a Token, 0 is a Token boundary
+  private static final int RESCAN = 1;
+  private static final int BLOCK_OPEN = 2;      // after "/*"
+  private static final int BLOCK_STARS = 3;     // after "/**"
+  private static final int BLOCK_BODY = 4;
+  private static final int BLOCK_STAR = 5;      // after a '*' in the body
+  private static final int LINE = 6;
+  private static final int LINE_CR = 7;         // after the '\r' ending a line comment
+  private static final int STRING = 8;
+  private static final int STRING_ESCAPE = 9;   // after a '\\' in a string
+  private static final int CHAR = 10;
+  private static final int CHAR_ESCAPE = 11;
+
+  private char[]            buffer;
+  private int               offset;             // document offset of buffer[0]
+  private int               position;           // where the next Token is looked for in buffer
+  private int               end;                // end of the text in buffer
+  private boolean           last;
+  private boolean           stopped;
+  private final LexerState  stop = new LexerState();
+  // where a Token interrupted in the middle goes on from
+  private boolean           resuming;
+  private int               resumeState;
+  private int               resumePosition;
+  // document offset of the last line start that was reported
+  private CheckpointListener listener;
+  private int               lastLine;
+  private int               tokenStart;
+  private int               tokenLength;
+  private byte              tokenPair;
+  private final WordDictionary words;
+
+  public DirectCppLexer () {
+    this(null);
+  }
+
+  /**
+   * Makes a Lexer that gives the identifiers and types found in words the
+   * TokenType they have there
+   */
+  public DirectCppLexer (WordDictionary words) {
+    this.words = words;
+  }
+
+  public void parse (Segment segment, int ofst, TokenSink sink) {
+    start(segment, ofst, null, true, null);
+    for (TokenType type = next(); type != null; type = next()) {
+      sink.token(type, tokenStart, tokenLength, tokenPair);
+    }
+  }
+
+  public void start (Segment segment, int ofst, LexerState state, boolean last, CheckpointListener listener) {
+    // scan the segment's array in place
+    buffer = segment.array;
+    offset = ofst - segment.offset;
+    end = segment.offset + segment.count;
+    this.last = last;
+    this.listener = listener;
+    stopped = resuming = false;
+    if (state == null) {
+      position = segment.offset;
+      lastLine = ofst;
+    } else {
+      position = state.start - offset;
+      lastLine = state.position;
+      if (state.state > RESCAN) {
+        // pick up the pending Token where it was interrupted
+        resuming = true;
+        resumeState = state.state;
+        resumePosition = state.position - offset;
+      }
+    }
+  }
+
+  public TokenType next () {
+    TokenType type = null;
+    if (resuming) {
+      resuming = false;
+      type = resume();
+    }
+    while (type == null && !stopped) {
+      type = scan();
+    }
+    return type;
+  }
+
+  public int getTokenStart () {
+    return tokenStart;
+  }
+
+  public int getTokenLength () {
+    return tokenLength;
+  }
+
+  public byte getPairValue () {
+    return tokenPair;
+  }
+
+  public void getState (LexerState state) {
+    if (stopped) {
+      state.set(stop.state, stop.position, stop.start, stop.marked);
+    } else {
+      int pos = position + offset;
+      state.set(0, pos, pos, pos);
+    }
+  }
+
+  /**
+   * Records the Token from start up to end in buffer, and carries on after it
+   */
+  private TokenType token (TokenType type, int start, int end, int pairValue) {
+    tokenStart = start + offset;
+    tokenLength = end - start;
+    tokenPair = (byte) pairValue;
+    position = end;
+    return type;
+  }
+
+  /**
+   * Records the identifier or type from start up to end in buffer, with the
+   * TokenType of the dictionary if it has the word
+   */
+  private TokenType word (TokenType type, int start, int end) {
+    if (words != null) {
+      TokenType word = words.get(buffer, start, end - start);
+      if (word != null) {
+        type = word;
+      }
+    }
+    return token(type, start, end, 0);
+  }
+
+  /**
+   * Ends the scan, letting go of the text so an idle Lexer doesn't keep it
+   */
+  private TokenType halt () {
+    stopped = true;
+    buffer = null;
+    return null;
+  }
+
+  /**
+   * Stops in state, about to look at the character at pos of a Token that
+   * started at start, and would back up to marked if it can't be extended
+   */
+  private TokenType suspend (int state, int pos, int start, int marked) {
+    stop.set(state, pos + offset, start + offset, marked + offset);
+    return halt();
+  }
+
+  /**
+   * Reports the checkpoint of the first look at the line start at pos
+   * @return false if the listener asked to stop
+   */
+  private boolean checkpoint (int state, int pos, int start, int marked) {
+    lastLine = pos + offset;
+    stop.set(state, pos + offset, start + offset, marked + offset);
+    return listener.checkpoint(stop);
+  }
+
+  /**
+   * Scans up to the next Token.  Returns null if it stopped, or if it skipped
+   * the quote of a string that doesn't end and has to go on after it
+   */
+  private TokenType scan () {
+    char[] buf = buffer;
+    int end = this.end;
+    int p = position;
+    while (true) {
+      if (listener != null && p + offset > lastLine && buf[p - 1] == '\n' &&
+          !checkpoint(0, p, p, p)) {
+        return halt();
+      }
+      if (p == end) {
+        position = p;
+        return suspend(0, p, p, p);
+      }
+      char c = buf[p];
+      int q = p + 1;
+      switch ((c < 128) ? KINDS[c] : (wideKind(c) == WIDE_WORD) ? WORD : SKIP) {
+      case SKIP:
+        p = q;
+        break;
+      case WORD: {
+        while (q < end && isIdentifierPart(buf[q])) {
+          q++;
+        }
+        if (q == end && !last) {
+          return suspend(RESCAN, q, p, p);
+        }
+        TokenType type = keyword(buf, p, q - p);
+        if (type == null) {
+          return word(TokenType.IDENTIFIER, p, q);
+        }
+        return (type == TokenType.TYPE) ? word(type, p, q) : token(type, p, q, 0);
+      }
+      case UPPER: {
+        while (q < end && isUpper(buf[q])) {
+          q++;
+        }
+        if (q < end) {
+          // both a type like FOO_2 and an identifier like FOO_bar go on from here
+          c = buf[q];
+          if (c == '#') {
+            return typeName(buf, p, q + 1);
+          } else if (isIdentifierPart(c)) {
+            do {
+              q++;
+            } while (q < end && isIdentifierPart(buf[q]));
+            if (q == end && !last) {
+              return suspend(RESCAN, q, p, p);
+            }
+            return word(TokenType.IDENTIFIER, p, q);
+          }
+        } else if (!last) {
+          return suspend(RESCAN, q, p, p);
+        }
+        return word(TokenType.TYPE, p, q);
+      }
+      case DIGIT: {
+        int n = number(buf, q, (c == '0') ? NUM_ZERO : NUM_DEC);
+        int t = q;
+        while (t < end && isTypeChar(buf[t])) {
+          t++;
+        }
+        if (n < 0 || (t == end && !last)) {
+          return suspend(RESCAN, end, p, p);
+        }
+        // a number wins a tie with a type like 8U
+        return (t > n) ? word(TokenType.TYPE, p, t) : token(TokenType.NUMBER, p, n, 0);
+      }
+      case DOT: {
+        int n = number(buf, q, NUM_DOT);
+        if (n < 0) {
+          return suspend(RESCAN, end, p, p);
+        }
+        return (n > q) ? token(TokenType.NUMBER, p, n, 0) : token(TokenType.OPERATOR, p, q, 0);
+      }
+      case OPERATOR:
+        return token(TokenType.OPERATOR, p, q, 0);
+      case SHIFT:
+        if (q == end && !last) {
+          return suspend(RESCAN, q, p, p);
+        }
+        return token(TokenType.OPERATOR, p, (q < end && buf[q] == c) ? q + 1 : q, 0);
+      case OPEN_PARAN:
+        return token(TokenType.OPERATOR, p, q, PARAN);
+      case CLOSE_PARAN:
+        return token(TokenType.OPERATOR, p, q, -PARAN);
+      case OPEN_BRACKET:
+        return token(TokenType.OPERATOR, p, q, BRACKET);
+      case CLOSE_BRACKET:
+        return token(TokenType.OPERATOR, p, q, -BRACKET);
+      case OPEN_CURLY:
+        return token(TokenType.OPERATOR, p, q, CURLY);
+      case CLOSE_CURLY:
+        return token(TokenType.OPERATOR, p, q, -CURLY);
+      case SLASH:
+        if (q == end) {
+          return last ? token(TokenType.OPERATOR, p, q, 0) : suspend(RESCAN, q, p, p);
+        } else if (buf[q] == '/') {
+          return lineComment(p, q + 1, false);
+        } else if (buf[q] == '*') {
+          return blockComment(p, q + 1, BLOCK_OPEN);
+        }
+        return token(TokenType.OPERATOR, p, q, 0);
+      case HASH:
+        return directive(buf, p, q);
+      case QUOTE:
+        return string(p, q, '"', false);
+      case APOSTROPHE:
+        return string(p, q, '\'', false);
+      }
+    }
+  }
+
+  /**
+   * Goes on with the Token that was interrupted in resumeState
+   */
+  private TokenType resume () {
+    int start = position;
+    int q = resumePosition;
+    switch (resumeState) {
+    case LINE:
+    case LINE_CR:
+      return lineComment(start, q, resumeState == LINE_CR);
+    case STRING:
+    case STRING_ESCAPE:
+      return string(start, q, '"', resumeState == STRING_ESCAPE);
+    case CHAR:
+    case CHAR_ESCAPE:
+      return string(start, q, '\'', resumeState == CHAR_ESCAPE);
+    default:
+      return blockComment(start, q, resumeState);
+    }
+  }
+
+  /**
+   * Scans the rest of a type like FOO#2 from q on
+   */
+  private TokenType typeName (char[] buf, int start, int q) {
+    while (q < end && isTypeChar(buf[q])) {
+      q++;
+    }
+    if (q == end && !last) {
+      return suspend(RESCAN, q, start, start);
+    }
+    return word(TokenType.TYPE, start, q);
+  }
+
+  /**
+   * Scans the Token of the '#' at start, which is a directive such as #include,
+   * or else a type
+   */
+  private TokenType directive (char[] buf, int start, int q) {
+    if (q == end) {
+      return last ? word(TokenType.TYPE, start, q) : suspend(RESCAN, q, start, start);
+    }
+    char c = buf[q];
+    if (isTypeChar(c)) {
+      return typeName(buf, start, q + 1);
+    }
+    int n = 0;
+    while (n < MAX_DIRECTIVE && q + n < end && buf[q + n] >= 'a' && buf[q + n] <= 'z') {
+      n++;
+    }
+    if (n < MAX_DIRECTIVE && q + n == end && !last) {
+      return suspend(RESCAN, end, start, start);
+    }
+    // the longest directive the word starts with
+    for (; n >= 2; n--) {
+      if (isDirective(buf, q, n)) {
+        return token(TokenType.KEYWORD2, start, q + n, 0);
+      }
+    }
+    return word(TokenType.TYPE, start, q);
+  }
+
+  /**
+   * Scans a line comment from q on, which is just after the '\r' ending it if cr
+   */
+  private TokenType lineComment (int start, int q, boolean cr) {
+    char[] buf = buffer;
+    int end = this.end;
+    if (!cr) {
+      char c = 0;
+      while (q < end && (c = buf[q]) != '\n' && c != '\r') {
+        q++;
+      }
+      if (q == end) {
+        return last ? token(TokenType.COMMENT, start, q, 0) : suspend(LINE, q, start, q);
+      }
+      q++;
+      if (c == '\n') {
+        return token(TokenType.COMMENT, start, q, 0);
+      }
+    }
+    if (q == end) {
+      return last ? token(TokenType.COMMENT, start, q, 0) : suspend(LINE_CR, q, start, q);
+    }
+    return token(TokenType.COMMENT, start, (buf[q] == '\n') ? q + 1 : q, 0);
+  }
+
+  /**
+   * Scans a block comment from q on in state.  A comment that doesn't end, or
+   * one like /**x that CppLexer doesn't take, is just a '/'
+   */
+  private TokenType blockComment (int start, int q, int state) {
+    char[] buf = buffer;
+    int end = this.end;
+    if (state == BLOCK_OPEN) {
+      if (q == end) {
+        return unfinished(BLOCK_OPEN, start, q);
+      }
+      char c = buf[q++];
+      if (c == '*') {
+        state = BLOCK_STARS;
+      } else if (c == '\n' && listener != null && q + offset > lastLine &&
+                 !checkpoint(BLOCK_BODY, q, start, start + 1)) {
+        return halt();
+      }
+    }
+    if (state == BLOCK_STARS) {
+      while (q < end && buf[q] == '*') {
+        q++;
+      }
+      if (q == end) {
+        return unfinished(BLOCK_STARS, start, q);
+      }
+      return (buf[q] == '/') ? token(TokenType.COMMENT, start, q + 1, 0) : unfinished(0, start, q);
+    }
+    boolean star = state == BLOCK_STAR;
+    while (true) {
+      if (!star) {
+        char c = 0;
+        while (q < end && (c = buf[q]) != '*' && c != '\n') {
+          q++;
+        }
+        if (q == end) {
+          return unfinished(BLOCK_BODY, start, q);
+        }
+        q++;
+        if (c == '\n') {
+          if (listener != null && q + offset > lastLine && !checkpoint(BLOCK_BODY, q, start, start + 1)) {
+            return halt();
+          }
+          continue;
+        }
+      }
+      star = false;
+      while (q < end && buf[q] == '*') {
+        q++;
+      }
+      if (q == end) {
+        return unfinished(BLOCK_STAR, start, q);
+      }
+      if (buf[q] == '/') {
+        return token(TokenType.COMMENT, start, q + 1, 0);
+      }
+    }
+  }
+
+  /**
+   * Ends a block comment that couldn't be finished at q, in state.  The
+   * comment is taken back to its '/' if it fails or the text ends
+   */
+  private TokenType unfinished (int state, int start, int q) {
+    if (state == 0 || last) {
+      return token(TokenType.OPERATOR, start, start + 1, 0);
+    }
+    return suspend(state, q, start, start + 1);
+  }
+
+  /**
+   * Scans a string or a character literal closed by quote from q on, which is
+   * just after a '\\' if escape.  The quote of one that doesn't end is
+   * skipped, and null is returned to go on after it
+   */
+  private TokenType string (int start, int q, char quote, boolean escape) {
+    char[] buf = buffer;
+    int end = this.end;
+    while (true) {
+      if (q == end) {
+        break;
+      }
+      char c = buf[q++];
+      if (escape) {
+        escape = false;
+        if (c == '\n') {
+          return token(TokenType.STRING, start, q, 0);
+        }
+      } else if (c == quote || c == '\n') {
+        return token(TokenType.STRING, start, q, 0);
+      } else if (c == '\\') {
+        escape = true;
+      }
+    }
+    if (last) {
+      position = start + 1;
+      return null;
+    }
+    int state = (quote == '"') ? STRING : CHAR;
+    return suspend(escape ? state + 1 : state, q, start, start + 1);
+  }
+
+  // states of the numbers, those before NUM_DOT are accepting
+  private static final int NUM_ZERO = 0;        // "0"
+  private static final int NUM_DEC = 1;         // "1"
+  private static final int NUM_OCT = 2;         // "07"
+  private static final int NUM_DEC0 = 3;        // "08", which can't take a u or l suffix
+  private static final int NUM_HEX = 4;         // "0x"
+  private static final int NUM_U = 5;           // "1u"
+  private static final int NUM_L = 6;           // "1l" or "1ul"
+  private static final int NUM_END = 7;         // "1f" or "1lu"
+  private static final int NUM_FRAC = 8;        // "1."
+  private static final int NUM_EXP_DIGITS = 9;  // "1e2"
+  private static final int NUM_DOT = 10;        // "."
+  private static final int NUM_EXP = 11;        // "1e"
+  private static final int NUM_EXP_SIGN = 12;   // "1e-"
+
+  /**
+   * Returns the end of the longest number read from q on in state, which is q
+   * if it can't be extended.  Returns -1 if it could go on past the end of the text
+   */
+  private int number (char[] buf, int q, int state) {
+    int end = this.end;
+    int matched = q;
+    while (state != NUM_END) {
+      if (q == end) {
+        return last ? matched : -1;
+      }
+      char c = buf[q];
+      switch (state) {
+      case NUM_ZERO:
+        state = (c == 'x' || c == 'X') ? NUM_HEX : octal(c);
+        break;
+      case NUM_OCT:
+        state = octal(c);
+        break;
+      case NUM_DEC:
+        state = isDigit(c) ? NUM_DEC : integerSuffix(c);
+        break;
+      case NUM_DEC0:
+        state = isDigit(c) ? NUM_DEC0 : fraction(c);
+        break;
+      case NUM_HEX:
+        state = (isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')) ? NUM_HEX :
+          (c == 'u' || c == 'U') ? NUM_U : (c == 'l' || c == 'L') ? NUM_L : -1;
+        break;
+      case NUM_U:
+        state = (c == 'l' || c == 'L') ? NUM_L : (c == 'u' || c == 'U') ? NUM_END : -1;
+        break;
+      case NUM_L:
+        state = (c == 'u' || c == 'U') ? NUM_END : -1;
+        break;
+      case NUM_FRAC:
+        state = isDigit(c) ? NUM_FRAC : (c == '.') ? -1 : fraction(c);
+        break;
+      case NUM_EXP_DIGITS:
+        state = isDigit(c) ? NUM_EXP_DIGITS : isFloatSuffix(c) ? NUM_END : -1;
+        break;
+      case NUM_DOT:
+        state = isDigit(c) ? NUM_FRAC : -1;
+        break;
+      case NUM_EXP:
+        state = isDigit(c) ? NUM_EXP_DIGITS : (c == '+' || c == '-') ? NUM_EXP_SIGN : -1;
+        break;
+      default:
+        state = isDigit(c) ? NUM_EXP_DIGITS : -1;
+        break;
+      }
+      if (state < 0) {
+        return matched;
+      }
+      q++;
+      if (state < NUM_DOT) {
+        matched = q;
+      }
+    }
+    return matched;
+  }
+
+  /**
+   * The state after an octal digit, or a digit that makes the number decimal
+   */
+  private static int octal (char c) {
+    return (c >= '0' && c <= '7') ? NUM_OCT : (c == '8' || c == '9') ? NUM_DEC0 : integerSuffix(c);
+  }
+
+  /**
+   * The state after a suffix or the fraction of an integer
+   */
+  private static int integerSuffix (char c) {
+    return (c == 'u' || c == 'U') ? NUM_U : (c == 'l' || c == 'L') ? NUM_L : fraction(c);
+  }
+
+  private static int fraction (char c) {
+    return (c == '.') ? NUM_FRAC : (c == 'e' || c == 'E') ? NUM_EXP : isFloatSuffix(c) ? NUM_END : -1;
+  }
+
+  private static boolean isFloatSuffix (char c) {
+    return c == 'f' || c == 'F' || c == 'd' || c == 'D';
+  }
+
+  private static boolean isDigit (char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  // what the first character of a Token starts
+  private static final byte SKIP = 0;
+  private static final byte WORD = 1;           // an identifier or keyword
+  private static final byte UPPER = 2;          // an identifier or type
+  private static final byte DIGIT = 3;
+  private static final byte DOT = 4;
+  private static final byte OPERATOR = 5;
+  private static final byte SHIFT = 6;          // '<' or '>', which may be doubled
+  private static final byte OPEN_PARAN = 7;
+  private static final byte CLOSE_PARAN = 8;
+  private static final byte OPEN_BRACKET = 9;
+  private static final byte CLOSE_BRACKET = 10;
+  private static final byte OPEN_CURLY = 11;
+  private static final byte CLOSE_CURLY = 12;
+  private static final byte SLASH = 13;
+  private static final byte HASH = 14;
+  private static final byte QUOTE = 15;
+  private static final byte APOSTROPHE = 16;
+
+  private static final byte[] KINDS = kinds();
+
+  private static byte[] kinds () {
+    byte[] kinds = new byte[128];
+    for (char c = 'a'; c <= 'z'; c++) {
+      kinds[c] = WORD;
+      kinds[c - 'a' + 'A'] = UPPER;
+    }
+    kinds['$'] = WORD;
+    kinds['_'] = UPPER;
+    for (char c = '0'; c <= '9'; c++) {
+      kinds[c] = DIGIT;
+    }
+    for (char c : "!%&*+,-:;=?^|~".toCharArray()) {
+      kinds[c] = OPERATOR;
+    }
+    kinds['.'] = DOT;
+    kinds['<'] = SHIFT;
+    kinds['>'] = SHIFT;
+    kinds['('] = OPEN_PARAN;
+    kinds[')'] = CLOSE_PARAN;
+    kinds['['] = OPEN_BRACKET;
+    kinds[']'] = CLOSE_BRACKET;
+    kinds['{'] = OPEN_CURLY;
+    kinds['}'] = CLOSE_CURLY;
+    kinds['/'] = SLASH;
+    kinds['#'] = HASH;
+    kinds['"'] = QUOTE;
+    kinds['\''] = APOSTROPHE;
+    return kinds;
+  }
+
+  // the ASCII characters that go on an identifier as bits of two longs: the
+  // letters, digits, '_', '$' and the control characters other than blanks
+  private static final long IDENTIFIER_LOW = 0x03ff00100fffc1ffL;
+  private static final long IDENTIFIER_HIGH = 0x87fffffe87fffffeL;
+  // the characters that go on a type such as FOO_2
+  private static final long UPPER_LOW = 0x03ff000000000000L;
+  private static final long UPPER_HIGH = 0x0000000087fffffeL;
+  private static final long TYPE_LOW = UPPER_LOW | 1L << '#';
+
+  private static boolean isIdentifierPart (char c) {
+    return (c < 128) ? (((c < 64) ? IDENTIFIER_LOW : IDENTIFIER_HIGH) >>> c & 1) != 0 : wideKind(c) != WIDE_SKIP;
+  }
+
+  private static boolean isUpper (char c) {
+    return c < 128 && (((c < 64) ? UPPER_LOW : UPPER_HIGH) >>> c & 1) != 0;
+  }
+
+  private static boolean isTypeChar (char c) {
+    return c < 128 && (((c < 64) ? TYPE_LOW : UPPER_HIGH) >>> c & 1) != 0;
+  }
+
+  // the kinds of the characters past ASCII
+  private static final byte WIDE_SKIP = 0;
+  private static final byte WIDE_WORD = 1;      // starts or goes on an identifier
+  private static final byte WIDE_PART = 2;      // only goes on an identifier
+
+  /**
+   * The first character of each run of characters past ASCII of the same
+   * kind, followed by the kind.  These follow CppLexer's character classes
+   * rather than the Character data of the running JDK
+   */
+  private static final String WIDE_RANGES =
+    "\u0080\2\u00a0\0\u00a2\1\u00a6\0\u00aa\1\u00ab\0\u00ad\2\u00ae\0" +
+    "\u00b5\1\u00b6\0\u00ba\1\u00bb\0\u00c0\1\u00d7\0\u00d8\1\u00f7\0" +
+    "\u00f8\1\u02c2\0\u02c6\1\u02d2\0\u02e0\1\u02e5\0\u02ec\1\u02ed\0" +
+    "\u02ee\1\u02ef\0\u0300\2\u0370\1\u0375\0\u0376\1\u0378\0\u037a\1" +
+    "\u037e\0\u037f\1\u0380\0\u0386\1\u0387\0\u0388\1\u038b\0\u038c\1" +
+    "\u038d\0\u038e\1\u03a2\0\u03a3\1\u03f6\0\u03f7\1\u0482\0\u0483\2" +
+    "\u0488\0\u048a\1\u0530\0\u0531\1\u0557\0\u0559\1\u055a\0\u0561\1" +
+    "\u0588\0\u058f\1\u0590\0\u0591\2\u05be\0\u05bf\2\u05c0\0\u05c1\2" +
+    "\u05c3\0\u05c4\2\u05c6\0\u05c7\2\u05c8\0\u05d0\1\u05eb\0\u05f0\1" +
+    "\u05f3\0\u0600\2\u0606\0\u060b\1\u060c\0\u0610\2\u061b\0\u061c\2" +
+    "\u061d\0\u0620\1\u064b\2\u066a\0\u066e\1\u0670\2\u0671\1\u06d4\0" +
+    "\u06d5\1\u06d6\2\u06de\0\u06df\2\u06e5\1\u06e7\2\u06e9\0\u06ea\2" +
+    "\u06ee\1\u06f0\2\u06fa\1\u06fd\0\u06ff\1\u0700\0\u070f\2\u0710\1" +
+    "\u0711\2\u0712\1\u0730\2\u074b\0\u074d\1\u07a6\2\u07b1\1\u07b2\0" +
+    "\u07c0\2\u07ca\1\u07eb\2\u07f4\1\u07f6\0\u07fa\1\u07fb\0\u0800\1" +
+    "\u0816\2\u081a\1\u081b\2\u0824\1\u0825\2\u0828\1\u0829\2\u082e\0" +
+    "\u0840\1\u0859\2\u085c\0\u08a0\1\u08b5\0\u08e3\2\u0904\1\u093a\2" +
+    "\u093d\1\u093e\2\u0950\1\u0951\2\u0958\1\u0962\2\u0964\0\u0966\2" +
+    "\u0970\0\u0971\1\u0981\2\u0984\0\u0985\1\u098d\0\u098f\1\u0991\0" +
+    "\u0993\1\u09a9\0\u09aa\1\u09b1\0\u09b2\1\u09b3\0\u09b6\1\u09ba\0" +
+    "\u09bc\2\u09bd\1\u09be\2\u09c5\0\u09c7\2\u09c9\0\u09cb\2\u09ce\1" +
+    "\u09cf\0\u09d7\2\u09d8\0\u09dc\1\u09de\0\u09df\1\u09e2\2\u09e4\0" +
+    "\u09e6\2\u09f0\1\u09f4\0\u09fb\1\u09fc\0\u0a01\2\u0a04\0\u0a05\1" +
+    "\u0a0b\0\u0a0f\1\u0a11\0\u0a13\1\u0a29\0\u0a2a\1\u0a31\0\u0a32\1" +
+    "\u0a34\0\u0a35\1\u0a37\0\u0a38\1\u0a3a\0\u0a3c\2\u0a3d\0\u0a3e\2" +
+    "\u0a43\0\u0a47\2\u0a49\0\u0a4b\2\u0a4e\0\u0a51\2\u0a52\0\u0a59\1" +
+    "\u0a5d\0\u0a5e\1\u0a5f\0\u0a66\2\u0a72\1\u0a75\2\u0a76\0\u0a81\2" +
+    "\u0a84\0\u0a85\1\u0a8e\0\u0a8f\1\u0a92\0\u0a93\1\u0aa9\0\u0aaa\1" +
+    "\u0ab1\0\u0ab2\1\u0ab4\0\u0ab5\1\u0aba\0\u0abc\2\u0abd\1\u0abe\2" +
+    "\u0ac6\0\u0ac7\2\u0aca\0\u0acb\2\u0ace\0\u0ad0\1\u0ad1\0\u0ae0\1" +
+    "\u0ae2\2\u0ae4\0\u0ae6\2\u0af0\0\u0af1\1\u0af2\0\u0af9\1\u0afa\0" +
+    "\u0b01\2\u0b04\0\u0b05\1\u0b0d\0\u0b0f\1\u0b11\0\u0b13\1\u0b29\0" +
+    "\u0b2a\1\u0b31\0\u0b32\1\u0b34\0\u0b35\1\u0b3a\0\u0b3c\2\u0b3d\1" +
+    "\u0b3e\2\u0b45\0\u0b47\2\u0b49\0\u0b4b\2\u0b4e\0\u0b56\2\u0b58\0" +
+    "\u0b5c\1\u0b5e\0\u0b5f\1\u0b62\2\u0b64\0\u0b66\2\u0b70\0\u0b71\1" +
+    "\u0b72\0\u0b82\2\u0b83\1\u0b84\0\u0b85\1\u0b8b\0\u0b8e\1\u0b91\0" +
+    "\u0b92\1\u0b96\0\u0b99\1\u0b9b\0\u0b9c\1\u0b9d\0\u0b9e\1\u0ba0\0" +
+    "\u0ba3\1\u0ba5\0\u0ba8\1\u0bab\0\u0bae\1\u0bba\0\u0bbe\2\u0bc3\0" +
+    "\u0bc6\2\u0bc9\0\u0bca\2\u0bce\0\u0bd0\1\u0bd1\0\u0bd7\2\u0bd8\0" +
+    "\u0be6\2\u0bf0\0\u0bf9\1\u0bfa\0\u0c00\2\u0c04\0\u0c05\1\u0c0d\0" +
+    "\u0c0e\1\u0c11\0\u0c12\1\u0c29\0\u0c2a\1\u0c3a\0\u0c3d\1\u0c3e\2" +
+    "\u0c45\0\u0c46\2\u0c49\0\u0c4a\2\u0c4e\0\u0c55\2\u0c57\0\u0c58\1" +
+    "\u0c5b\0\u0c60\1\u0c62\2\u0c64\0\u0c66\2\u0c70\0\u0c81\2\u0c84\0" +
+    "\u0c85\1\u0c8d\0\u0c8e\1\u0c91\0\u0c92\1\u0ca9\0\u0caa\1\u0cb4\0" +
+    "\u0cb5\1\u0cba\0\u0cbc\2\u0cbd\1\u0cbe\2\u0cc5\0\u0cc6\2\u0cc9\0" +
+    "\u0cca\2\u0cce\0\u0cd5\2\u0cd7\0\u0cde\1\u0cdf\0\u0ce0\1\u0ce2\2" +
+    "\u0ce4\0\u0ce6\2\u0cf0\0\u0cf1\1\u0cf3\0\u0d01\2\u0d04\0\u0d05\1" +
+    "\u0d0d\0\u0d0e\1\u0d11\0\u0d12\1\u0d3b\0\u0d3d\1\u0d3e\2\u0d45\0" +
+    "\u0d46\2\u0d49\0\u0d4a\2\u0d4e\1\u0d4f\0\u0d57\2\u0d58\0\u0d5f\1" +
+    "\u0d62\2\u0d64\0\u0d66\2\u0d70\0\u0d7a\1\u0d80\0\u0d82\2\u0d84\0" +
+    "\u0d85\1\u0d97\0\u0d9a\1\u0db2\0\u0db3\1\u0dbc\0\u0dbd\1\u0dbe\0" +
+    "\u0dc0\1\u0dc7\0\u0dca\2\u0dcb\0\u0dcf\2\u0dd5\0\u0dd6\2\u0dd7\0" +
+    "\u0dd8\2\u0de0\0\u0de6\2\u0df0\0\u0df2\2\u0df4\0\u0e01\1\u0e31\2" +
+    "\u0e32\1\u0e34\2\u0e3b\0\u0e3f\1\u0e47\2\u0e4f\0\u0e50\2\u0e5a\0" +
+    "\u0e81\1\u0e83\0\u0e84\1\u0e85\0\u0e87\1\u0e89\0\u0e8a\1\u0e8b\0" +
+    "\u0e8d\1\u0e8e\0\u0e94\1\u0e98\0\u0e99\1\u0ea0\0\u0ea1\1\u0ea4\0" +
+    "\u0ea5\1\u0ea6\0\u0ea7\1\u0ea8\0\u0eaa\1\u0eac\0\u0ead\1\u0eb1\2" +
+    "\u0eb2\1\u0eb4\2\u0eba\0\u0ebb\2\u0ebd\1\u0ebe\0\u0ec0\1\u0ec5\0" +
+    "\u0ec6\1\u0ec7\0\u0ec8\2\u0ece\0\u0ed0\2\u0eda\0\u0edc\1\u0ee0\0" +
+    "\u0f00\1\u0f01\0\u0f18\2\u0f1a\0\u0f20\2\u0f2a\0\u0f35\2\u0f36\0" +
+    "\u0f37\2\u0f38\0\u0f39\2\u0f3a\0\u0f3e\2\u0f40\1\u0f48\0\u0f49\1" +
+    "\u0f6d\0\u0f71\2\u0f85\0\u0f86\2\u0f88\1\u0f8d\2\u0f98\0\u0f99\2" +
+    "\u0fbd\0\u0fc6\2\u0fc7\0\u1000\1\u102b\2\u103f\1\u1040\2\u104a\0" +
+    "\u1050\1\u1056\2\u105a\1\u105e\2\u1061\1\u1062\2\u1065\1\u1067\2" +
+    "\u106e\1\u1071\2\u1075\1\u1082\2\u108e\1\u108f\2\u109e\0\u10a0\1" +
+    "\u10c6\0\u10c7\1\u10c8\0\u10cd\1\u10ce\0\u10d0\1\u10fb\0\u10fc\1" +
+    "\u1249\0\u124a\1\u124e\0\u1250\1\u1257\0\u1258\1\u1259\0\u125a\1" +
+    "\u125e\0\u1260\1\u1289\0\u128a\1\u128e\0\u1290\1\u12b1\0\u12b2\1" +
+    "\u12b6\0\u12b8\1\u12bf\0\u12c0\1\u12c1\0\u12c2\1\u12c6\0\u12c8\1" +
+    "\u12d7\0\u12d8\1\u1311\0\u1312\1\u1316\0\u1318\1\u135b\0\u135d\2" +
+    "\u1360\0\u1380\1\u1390\0\u13a0\1\u13f6\0\u13f8\1\u13fe\0\u1401\1" +
+    "\u166d\0\u166f\1\u1680\0\u1681\1\u169b\0\u16a0\1\u16eb\0\u16ee\1" +
+    "\u16f9\0\u1700\1\u170d\0\u170e\1\u1712\2\u1715\0\u1720\1\u1732\2" +
+    "\u1735\0\u1740\1\u1752\2\u1754\0\u1760\1\u176d\0\u176e\1\u1771\0" +
+    "\u1772\2\u1774\0\u1780\1\u17b4\2\u17d4\0\u17d7\1\u17d8\0\u17db\1" +
+    "\u17dd\2\u17de\0\u17e0\2\u17ea\0\u180b\2\u180f\0\u1810\2\u181a\0" +
+    "\u1820\1\u1878\0\u1880\1\u18a9\2\u18aa\1\u18ab\0\u18b0\1\u18f6\0" +
+    "\u1900\1\u191f\0\u1920\2\u192c\0\u1930\2\u193c\0\u1946\2\u1950\1" +
+    "\u196e\0\u1970\1\u1975\0\u1980\1\u19ac\0\u19b0\1\u19ca\0\u19d0\2" +
+    "\u19da\0\u1a00\1\u1a17\2\u1a1c\0\u1a20\1\u1a55\2\u1a5f\0\u1a60\2" +
+    "\u1a7d\0\u1a7f\2\u1a8a\0\u1a90\2\u1a9a\0\u1aa7\1\u1aa8\0\u1ab0\2" +
+    "\u1abe\0\u1b00\2\u1b05\1\u1b34\2\u1b45\1\u1b4c\0\u1b50\2\u1b5a\0" +
+    "\u1b6b\2\u1b74\0\u1b80\2\u1b83\1\u1ba1\2\u1bae\1\u1bb0\2\u1bba\1" +
+    "\u1be6\2\u1bf4\0\u1c00\1\u1c24\2\u1c38\0\u1c40\2\u1c4a\0\u1c4d\1" +
+    "\u1c50\2\u1c5a\1\u1c7e\0\u1cd0\2\u1cd3\0\u1cd4\2\u1ce9\1\u1ced\2" +
+    "\u1cee\1\u1cf2\2\u1cf5\1\u1cf7\0\u1cf8\2\u1cfa\0\u1d00\1\u1dc0\2" +
+    "\u1df6\0\u1dfc\2\u1e00\1\u1f16\0\u1f18\1\u1f1e\0\u1f20\1\u1f46\0" +
+    "\u1f48\1\u1f4e\0\u1f50\1\u1f58\0\u1f59\1\u1f5a\0\u1f5b\1\u1f5c\0" +
+    "\u1f5d\1\u1f5e\0\u1f5f\1\u1f7e\0\u1f80\1\u1fb5\0\u1fb6\1\u1fbd\0" +
+    "\u1fbe\1\u1fbf\0\u1fc2\1\u1fc5\0\u1fc6\1\u1fcd\0\u1fd0\1\u1fd4\0" +
+    "\u1fd6\1\u1fdc\0\u1fe0\1\u1fed\0\u1ff2\1\u1ff5\0\u1ff6\1\u1ffd\0" +
+    "\u200b\2\u2010\0\u202a\2\u202f\0\u203f\1\u2041\0\u2054\1\u2055\0" +
+    "\u2060\2\u2065\0\u2066\2\u2070\0\u2071\1\u2072\0\u207f\1\u2080\0" +
+    "\u2090\1\u209d\0\u20a0\1\u20bf\0\u20d0\2\u20dd\0\u20e1\2\u20e2\0" +
+    "\u20e5\2\u20f1\0\u2102\1\u2103\0\u2107\1\u2108\0\u210a\1\u2114\0" +
+    "\u2115\1\u2116\0\u2119\1\u211e\0\u2124\1\u2125\0\u2126\1\u2127\0" +
+    "\u2128\1\u2129\0\u212a\1\u212e\0\u212f\1\u213a\0\u213c\1\u2140\0" +
+    "\u2145\1\u214a\0\u214e\1\u214f\0\u2160\1\u2189\0\u2c00\1\u2c2f\0" +
+    "\u2c30\1\u2c5f\0\u2c60\1\u2ce5\0\u2ceb\1\u2cef\2\u2cf2\1\u2cf4\0" +
+    "\u2d00\1\u2d26\0\u2d27\1\u2d28\0\u2d2d\1\u2d2e\0\u2d30\1\u2d68\0" +
+    "\u2d6f\1\u2d70\0\u2d7f\2\u2d80\1\u2d97\0\u2da0\1\u2da7\0\u2da8\1" +
+    "\u2daf\0\u2db0\1\u2db7\0\u2db8\1\u2dbf\0\u2dc0\1\u2dc7\0\u2dc8\1" +
+    "\u2dcf\0\u2dd0\1\u2dd7\0\u2dd8\1\u2ddf\0\u2de0\2\u2e00\0\u2e2f\1" +
+    "\u2e30\0\u3005\1\u3008\0\u3021\1\u302a\2\u3030\0\u3031\1\u3036\0" +
+    "\u3038\1\u303d\0\u3041\1\u3097\0\u3099\2\u309b\0\u309d\1\u30a0\0" +
+    "\u30a1\1\u30fb\0\u30fc\1\u3100\0\u3105\1\u312e\0\u3131\1\u318f\0" +
+    "\u31a0\1\u31bb\0\u31f0\1\u3200\0\u3400\1\u4db6\0\u4e00\1\u9fd6\0" +
+    "\ua000\1\ua48d\0\ua4d0\1\ua4fe\0\ua500\1\ua60d\0\ua610\1\ua620\2" +
+    "\ua62a\1\ua62c\0\ua640\1\ua66f\2\ua670\0\ua674\2\ua67e\0\ua67f\1" +
+    "\ua69e\2\ua6a0\1\ua6f0\2\ua6f2\0\ua717\1\ua720\0\ua722\1\ua789\0" +
+    "\ua78b\1\ua7ae\0\ua7b0\1\ua7b8\0\ua7f7\1\ua802\2\ua803\1\ua806\2" +
+    "\ua807\1\ua80b\2\ua80c\1\ua823\2\ua828\0\ua838\1\ua839\0\ua840\1" +
+    "\ua874\0\ua880\2\ua882\1\ua8b4\2\ua8c5\0\ua8d0\2\ua8da\0\ua8e0\2" +
+    "\ua8f2\1\ua8f8\0\ua8fb\1\ua8fc\0\ua8fd\1\ua8fe\0\ua900\2\ua90a\1" +
+    "\ua926\2\ua92e\0\ua930\1\ua947\2\ua954\0\ua960\1\ua97d\0\ua980\2" +
+    "\ua984\1\ua9b3\2\ua9c1\0\ua9cf\1\ua9d0\2\ua9da\0\ua9e0\1\ua9e5\2" +
+    "\ua9e6\1\ua9f0\2\ua9fa\1\ua9ff\0\uaa00\1\uaa29\2\uaa37\0\uaa40\1" +
+    "\uaa43\2\uaa44\1\uaa4c\2\uaa4e\0\uaa50\2\uaa5a\0\uaa60\1\uaa77\0" +
+    "\uaa7a\1\uaa7b\2\uaa7e\1\uaab0\2\uaab1\1\uaab2\2\uaab5\1\uaab7\2" +
+    "\uaab9\1\uaabe\2\uaac0\1\uaac1\2\uaac2\1\uaac3\0\uaadb\1\uaade\0" +
+    "\uaae0\1\uaaeb\2\uaaf0\0\uaaf2\1\uaaf5\2\uaaf7\0\uab01\1\uab07\0" +
+    "\uab09\1\uab0f\0\uab11\1\uab17\0\uab20\1\uab27\0\uab28\1\uab2f\0" +
+    "\uab30\1\uab5b\0\uab5c\1\uab66\0\uab70\1\uabe3\2\uabeb\0\uabec\2" +
+    "\uabee\0\uabf0\2\uabfa\0\uac00\1\ud7a4\0\ud7b0\1\ud7c7\0\ud7cb\1" +
+    "\ud7fc\0\uf900\1\ufa6e\0\ufa70\1\ufada\0\ufb00\1\ufb07\0\ufb13\1" +
+    "\ufb18\0\ufb1d\1\ufb1e\2\ufb1f\1\ufb29\0\ufb2a\1\ufb37\0\ufb38\1" +
+    "\ufb3d\0\ufb3e\1\ufb3f\0\ufb40\1\ufb42\0\ufb43\1\ufb45\0\ufb46\1" +
+    "\ufbb2\0\ufbd3\1\ufd3e\0\ufd50\1\ufd90\0\ufd92\1\ufdc8\0\ufdf0\1" +
+    "\ufdfd\0\ufe00\2\ufe10\0\ufe20\2\ufe30\0\ufe33\1\ufe35\0\ufe4d\1" +
+    "\ufe50\0\ufe69\1\ufe6a\0\ufe70\1\ufe75\0\ufe76\1\ufefd\0\ufeff\2" +
+    "\uff00\0\uff04\1\uff05\0\uff10\2\uff1a\0\uff21\1\uff3b\0\uff3f\1" +
+    "\uff40\0\uff41\1\uff5b\0\uff66\1\uffbf\0\uffc2\1\uffc8\0\uffca\1" +
+    "\uffd0\0\uffd2\1\uffd8\0\uffda\1\uffdd\0\uffe0\1\uffe2\0\uffe5\1" +
+    "\uffe7\0\ufff9\2\ufffc\0";
+
+  private static final char[] WIDE_STARTS = new char[WIDE_RANGES.length() / 2];
+  private static final byte[] WIDE_KINDS = new byte[WIDE_RANGES.length() / 2];
+
+  static {
+    for (int i = 0; i < WIDE_STARTS.length; i++) {
+      WIDE_STARTS[i] = WIDE_RANGES.charAt(2 * i);
+      WIDE_KINDS[i] = (byte) WIDE_RANGES.charAt(2 * i + 1);
+    }
+  }
+
+  private static byte wideKind (char c) {
+    int i = Arrays.binarySearch(WIDE_STARTS, c);
+    return WIDE_KINDS[(i >= 0) ? i : -i - 2];
+  }
+
+  /**
+   * The keywords, types and operator words, with their TokenTypes, in a
+   * perfect hash table.  The hash was picked so that none of them collide
+   */
+  private static final int MAX_KEYWORD = 11;
+  private static final char[][] KEYWORDS = new char[256][];
+  private static final TokenType[] KEYWORD_TYPES = new TokenType[256];
+
+  static {
+    addKeywords(TokenType.OPERATOR, "and", "and_eq", "bitand", "bitor", "compl", "not", "not_eq", "operator",
+                "or", "or_eq", "xor", "xor_eq");
+    addKeywords(TokenType.TYPE, "bool", "char", "const", "double", "explicit", "export", "extern", "float",
+                "int", "long", "private", "protected", "public", "register", "short", "signed", "static",
+                "struct", "union", "unsigned", "void", "volatile", "wchar_t");
+    addKeywords(TokenType.NUMBER, "false", "true");
+    addKeywords(TokenType.KEYWORD, "break", "case", "catch", "class", "continue", "default", "delete", "do",
+                "else", "enum", "for", "friend", "goto", "if", "inline", "mutable", "namespace", "new",
+                "noinline", "return", "safecast", "sealed", "selectany", "sizeof", "static_cast", "switch",
+                "template", "this", "thread", "throw", "try", "typedef", "typeid", "typename", "using",
+                "uuid", "value", "virtual", "while");
+    addKeywords(TokenType.TYPE2, "cin", "cout");
+  }
+
+  private static int keywordHash (char[] buf, int start, int length) {
+    return (2 * buf[start] + 39 * buf[start + 1] + 25 * buf[start + length - 1] + 19 * length) & 255;
+  }
+
+  private static void addKeywords (TokenType type, String... words) {
+    for (String word : words) {
+      char[] chars = word.toCharArray();
+      int hash = keywordHash(chars, 0, chars.length);
+      if (KEYWORDS[hash] != null) {
+        throw new IllegalStateException(word + " collides with " + new String(KEYWORDS[hash]));
+      }
+      KEYWORDS[hash] = chars;
+      KEYWORD_TYPES[hash] = type;
+    }
+  }
+
+  /**
+   * Returns the TokenType of the word of length at start if it is a keyword, or null
+   */
+  private static TokenType keyword (char[] buf, int start, int length) {
+    if (length < 2 || length > MAX_KEYWORD) {
+      return null;
+    }
+    int hash = keywordHash(buf, start, length);
+    char[] word = KEYWORDS[hash];
+    if (word == null || word.length != length) {
+      return null;
+    }
+    for (int i = 0; i < length; i++) {
+      if (word[i] != buf[start + i]) {
+        return null;
+      }
+    }
+    return KEYWORD_TYPES[hash];
+  }
+
+  /**
+   * The preprocessor directives without their '#', in a perfect hash table
+   */
+  private static final int MAX_DIRECTIVE = 7;
+  private static final char[][] DIRECTIVES = new char[32][];
+
+  static {
+    for (String word : new String[] {"define", "elif", "else", "endif", "error", "if", "ifdef", "ifndef",
+                                     "import", "include", "line", "pragma", "undef", "using"}) {
+      char[] chars = word.toCharArray();
+      int hash = directiveHash(chars, 0, chars.length);
+      if (DIRECTIVES[hash] != null) {
+        throw new IllegalStateException(word + " collides with " + new String(DIRECTIVES[hash]));
+      }
+      DIRECTIVES[hash] = chars;
+    }
+  }
+
+  private static int directiveHash (char[] buf, int start, int length) {
+    return (buf[start] + buf[start + length - 1] + 5 * length) & 31;
+  }
+
+  private static boolean isDirective (char[] buf, int start, int length) {
+    char[] word = DIRECTIVES[directiveHash(buf, start, length)];
+    if (word == null || word.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (word[i] != buf[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
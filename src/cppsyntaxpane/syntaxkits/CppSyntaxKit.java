@@ -14,15 +14,36 @@
 package cppsyntaxpane.syntaxkits;
 
 import cppsyntaxpane.DefaultSyntaxKit;
+import cppsyntaxpane.LexerPool;
+import cppsyntaxpane.lexers.AsmLexer;
 import cppsyntaxpane.lexers.CppLexer;
+import cppsyntaxpane.lexers.DirectCppLexer;
 
 /**
  * @author Ayman Al-Sairafi
  */
 @SuppressWarnings("unused")
 public class CppSyntaxKit extends DefaultSyntaxKit {
+  // Swing makes a kit per editor, they all share the lexers
+  private static final LexerPool lexers = new LexerPool(CppLexer::new);
+  /**
+   * The Lexers of kits that lex with DirectCppLexer, which gives the same
+   * Tokens as CppLexer faster
+   */
+  public static final LexerPool DIRECT_LEXERS = new LexerPool(DirectCppLexer::new);
+  private static final LexerPool asmLexers = new LexerPool(AsmLexer::new);
+
   @SuppressWarnings("unused")
   public CppSyntaxKit () {
-    super(new CppLexer());
+    this(lexers);
+  }
+
+  /**
+   * Makes a kit whose documents borrow their C++ Lexers from lexers, such as
+   * DIRECT_LEXERS
+   */
+  public CppSyntaxKit (LexerPool lexers) {
+    super(lexers);
+    setEmbeddedLexers(asmLexers);
   }
 }